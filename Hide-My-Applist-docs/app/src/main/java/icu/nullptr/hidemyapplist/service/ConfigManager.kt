@@ -4,9 +4,15 @@ import android.os.Build
 import android.util.Log
 import com.tsng.hidemyapplist.R
 import icu.nullptr.hidemyapplist.common.BuildConfig
+import icu.nullptr.hidemyapplist.common.ConfigPatch
 import icu.nullptr.hidemyapplist.common.JsonConfig
 import icu.nullptr.hidemyapplist.hmaApp
 import icu.nullptr.hidemyapplist.ui.util.makeToast
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import java.io.File
 
 object ConfigManager {
@@ -14,8 +20,16 @@ object ConfigManager {
     data class TemplateInfo(val name: String?, val isWhiteList: Boolean)
 
     private const val TAG = "ConfigManager"
+    // Bursts of changes within this window are written to disk once
+    private const val SAVE_DELAY = 1000L
     private lateinit var config: JsonConfig
-    val configFile = File("${hmaApp.filesDir.absolutePath}/config.json")
+    private val configFile = File("${hmaApp.filesDir.absolutePath}/config.json")
+
+    // Main thread only
+    private var saveJob: Job? = null
+    private var savePending = false
+    // Service revision produced by our last sync; a mismatch makes the service ask for a full sync
+    private var revision = -1L
 
     fun init() {
         if (!configFile.exists()) {
@@ -26,31 +40,75 @@ object ConfigManager {
             val configVersion = config.configVersion
             if (configVersion < 65) throw RuntimeException("Config version too old")
             config.configVersion = BuildConfig.CONFIG_VERSION
-            saveConfig()
+            configFile.writeText(config.toString())
+            syncConfig()
         }.onFailure {
             makeToast(R.string.config_damaged)
             throw RuntimeException("Config file too old or damaged", it)
         }
     }
 
-    private fun saveConfig() {
-        val text = config.toString()
-        configFile.writeText(text)
-        ServiceClient.syncConfig(text)
+    /** Write the config to disk shortly after the last change, off the main thread. */
+    private fun scheduleSave() {
+        savePending = true
+        saveJob?.cancel()
+        saveJob = hmaApp.globalScope.launch(Dispatchers.Main) {
+            delay(SAVE_DELAY)
+            val text = config.toString()
+            savePending = false
+            withContext(Dispatchers.IO) { configFile.writeText(text) }
+        }
+    }
+
+    /** Write a pending change now, e.g. when the app goes to background and may be killed. */
+    fun flush() {
+        if (!savePending) return
+        saveJob?.cancel()
+        savePending = false
+        configFile.writeText(config.toString())
     }
 
+    private fun syncConfig() {
+        ServiceClient.syncConfig(config.toString())
+        revision = ServiceClient.configRevision
+    }
+
+    /** Save the change and send it to the service as [ops], or as the whole config if the service is out of step. */
+    private fun commit(vararg ops: ConfigPatch.Op) {
+        scheduleSave()
+        if (ops.isEmpty()) return
+        val newRevision = ServiceClient.applyConfigPatch(ConfigPatch(baseRevision = revision, ops = ops.toList()).toString())
+        if (newRevision >= 0) revision = newRevision
+        else syncConfig()
+    }
+
+    private fun commitSettings() = commit(
+        ConfigPatch.Op.Settings(config.detailLog, config.maxLogSize, config.forceMountData)
+    )
+
+    private fun commitScopes(apps: Collection<String>, vararg ops: ConfigPatch.Op) {
+        val scopeOps = apps.map { app ->
+            val appConfig = config.scope[app]
+            if (appConfig == null) ConfigPatch.Op.RemoveScope(app)
+            else ConfigPatch.Op.UpsertScope(app, appConfig)
+        }
+        commit(*ops, *scopeOps.toTypedArray())
+    }
+
+    fun exportConfig() = config.toString()
+
     var detailLog: Boolean
         get() = config.detailLog
         set(value) {
             config.detailLog = value
-            saveConfig()
+            commitSettings()
         }
 
     var maxLogSize: Int
         get() = config.maxLogSize
         set(value) {
             config.maxLogSize = value
-            saveConfig()
+            commitSettings()
         }
 
     var forceMountData: Boolean
@@ -59,13 +117,14 @@ object ConfigManager {
             else false
         set(value) {
             config.forceMountData = value
-            saveConfig()
+            commitSettings()
         }
 
     fun importConfig(json: String) {
         config = JsonConfig.parse(json)
         config.configVersion = BuildConfig.CONFIG_VERSION
-        saveConfig()
+        scheduleSave()
+        syncConfig()
     }
 
     fun hasTemplate(name: String?): Boolean {
@@ -87,39 +146,48 @@ object ConfigManager {
     }
 
     fun deleteTemplate(name: String) {
-        config.scope.forEach { (_, appInfo) ->
-            appInfo.applyTemplates.remove(name)
+        val changed = config.scope.mapNotNull { (app, appInfo) ->
+            if (appInfo.applyTemplates.remove(name)) app else null
         }
         config.templates.remove(name)
-        saveConfig()
+        commitScopes(changed, ConfigPatch.Op.RemoveTemplate(name))
     }
 
     fun renameTemplate(oldName: String, newName: String) {
         if (oldName == newName) return
-        config.scope.forEach { (_, appInfo) ->
+        val changed = config.scope.mapNotNull { (app, appInfo) ->
             if (appInfo.applyTemplates.contains(oldName)) {
                 appInfo.applyTemplates.remove(oldName)
                 appInfo.applyTemplates.add(newName)
-            }
+                app
+            } else null
         }
-        config.templates[newName] = config.templates[oldName]!!
+        val template = config.templates[oldName]!!
+        config.templates[newName] = template
         config.templates.remove(oldName)
-        saveConfig()
+        // The new template must exist before the scopes that apply it
+        commit(
+            ConfigPatch.Op.UpsertTemplate(newName, template),
+            *changed.mapNotNull { app -> config.scope[app]?.let { ConfigPatch.Op.UpsertScope(app, it) } }.toTypedArray(),
+            ConfigPatch.Op.RemoveTemplate(oldName)
+        )
     }
 
     fun updateTemplate(name: String, template: JsonConfig.Template) {
         Log.d(TAG, "updateTemplate: $name list = ${template.appList}")
         config.templates[name] = template
-        saveConfig()
+        commit(ConfigPatch.Op.UpsertTemplate(name, template))
     }
 
     fun updateTemplateAppliedApps(name: String, appliedList: List<String>) {
         Log.d(TAG, "updateTemplateAppliedApps: $name list = $appliedList")
-        config.scope.forEach { (app, appInfo) ->
-            if (appliedList.contains(app)) appInfo.applyTemplates.add(name)
-            else appInfo.applyTemplates.remove(name)
+        val changed = config.scope.mapNotNull { (app, appInfo) ->
+            val modified =
+                if (appliedList.contains(app)) appInfo.applyTemplates.add(name)
+                else appInfo.applyTemplates.remove(name)
+            if (modified) app else null
         }
-        saveConfig()
+        commitScopes(changed)
     }
 
     fun isHideEnabled(packageName: String): Boolean {
@@ -133,6 +201,6 @@ object ConfigManager {
     fun setAppConfig(packageName: String, appConfig: JsonConfig.AppConfig?) {
         if (appConfig == null) config.scope.remove(packageName)
         else config.scope[packageName] = appConfig
-        saveConfig()
+        commitScopes(listOf(packageName))
     }
 }
@@ -8,6 +8,7 @@ import android.os.ServiceManager
 import android.util.Log
 import icu.nullptr.hidemyapplist.common.Constants
 import icu.nullptr.hidemyapplist.common.IHMAService
+import icu.nullptr.hidemyapplist.common.LogRecord
 import java.lang.reflect.InvocationHandler
 import java.lang.reflect.Method
 import java.lang.reflect.Proxy
@@ -79,8 +80,16 @@ object ServiceClient : IHMAService, DeathRecipient {
 
     override fun getFilterCount() = getServiceLegacy()?.filterCount ?: 0
 
+    override fun getFilterStats() = getServiceLegacy()?.filterStats
+
     override fun getLogs() = getServiceLegacy()?.logs
 
+    override fun readLogs(afterSeq: Long, limit: Int): List<LogRecord> =
+        getServiceLegacy()?.readLogs(afterSeq, limit).orEmpty()
+
+    override fun readLogsBefore(beforeSeq: Long, limit: Int): List<LogRecord> =
+        getServiceLegacy()?.readLogsBefore(beforeSeq, limit).orEmpty()
+
     override fun clearLogs() {
         getServiceLegacy()?.clearLogs()
     }
@@ -89,6 +98,10 @@ object ServiceClient : IHMAService, DeathRecipient {
         getServiceLegacy()?.syncConfig(json)
     }
 
+    override fun applyConfigPatch(patch: String) = getServiceLegacy()?.applyConfigPatch(patch) ?: -1
+
+    override fun getConfigRevision() = getServiceLegacy()?.configRevision ?: -1
+
     override fun stopService(cleanEnv: Boolean) {
         getServiceLegacy()?.stopService(cleanEnv)
     }
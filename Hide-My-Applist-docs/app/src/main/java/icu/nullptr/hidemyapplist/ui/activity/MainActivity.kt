@@ -10,6 +10,7 @@ import com.google.android.gms.ads.MobileAds
 import com.google.android.material.color.DynamicColors
 import com.tsng.hidemyapplist.R
 import com.tsng.hidemyapplist.databinding.ActivityMainBinding
+import icu.nullptr.hidemyapplist.service.ConfigManager
 import icu.nullptr.hidemyapplist.ui.util.ThemeUtils
 import rikka.material.app.MaterialActivity
 
@@ -28,6 +29,11 @@ class MainActivity : MaterialActivity() {
         MobileAds.initialize(this)
     }
 
+    override fun onStop() {
+        super.onStop()
+        ConfigManager.flush()
+    }
+
     override fun onSupportNavigateUp(): Boolean {
         val navController = this.findNavController(R.id.nav_host_fragment)
         return navController.navigateUp() || super.onSupportNavigateUp()
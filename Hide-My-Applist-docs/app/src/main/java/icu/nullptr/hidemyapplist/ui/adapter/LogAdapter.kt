@@ -4,18 +4,22 @@ import android.annotation.SuppressLint
 import android.content.Context
 import android.graphics.Color
 import android.os.Build
+import android.util.Log
 import android.view.LayoutInflater
 import android.view.ViewGroup
 import androidx.recyclerview.widget.RecyclerView
 import com.tsng.hidemyapplist.R
 import com.tsng.hidemyapplist.databinding.LogItemViewBinding
+import icu.nullptr.hidemyapplist.common.LogRecord
 import icu.nullptr.hidemyapplist.service.PrefManager
 import icu.nullptr.hidemyapplist.ui.util.ThemeUtils.themeColor
-import java.util.regex.Pattern
+import java.text.SimpleDateFormat
+import java.util.*
 
 class LogAdapter(context: Context) : RecyclerView.Adapter<LogAdapter.ViewHolder>() {
 
     class LogItem(
+        val seq: Long,
         val level: String,
         val date: String,
         val tag: String,
@@ -23,20 +27,32 @@ class LogAdapter(context: Context) : RecyclerView.Adapter<LogAdapter.ViewHolder>
     )
 
     companion object {
-        private val pattern = Pattern.compile("\\[ ?(.*)] (.*) \\((.*)\\) (.*)", Pattern.DOTALL)
+        // Only used on the main thread
+        private val dateFormat = SimpleDateFormat("MM-dd HH:mm:ss", Locale.getDefault())
 
-        fun parseLog(text: String): LogItem? {
-            val matcher = pattern.matcher(text)
-            matcher.find()
-            val level = matcher.group(1) ?: return null
+        private fun levelName(level: Int) = when (level) {
+            Log.DEBUG -> "DEBUG"
+            Log.INFO -> "INFO"
+            Log.WARN -> "WARN"
+            Log.ERROR -> "ERROR"
+            else -> null
+        }
+
+        fun fromRecord(record: LogRecord): LogItem? {
+            val level = levelName(record.level) ?: return null
             if (level == "DEBUG" && PrefManager.logFilter_level > 0 ||
                 level == "INFO" && PrefManager.logFilter_level > 1 ||
                 level == "WARN" && PrefManager.logFilter_level > 2
             ) return null
-            val date = matcher.group(2) ?: return null
-            val tag = matcher.group(3) ?: return null
-            val message = matcher.group(4) ?: return null
-            return LogItem(level, date, tag, message)
+            val date = dateFormat.format(Date(record.time))
+            return LogItem(record.seq, level, date, record.tag, record.message.trimEnd('\n'))
+        }
+
+        /** The record in the service's text log format, for export. */
+        fun format(record: LogRecord): String {
+            val level = (levelName(record.level) ?: "?????").padStart(5)
+            val date = dateFormat.format(Date(record.time))
+            return "[$level] $date (${record.tag}) ${record.message.trimEnd('\n')}\n"
         }
     }
 
@@ -47,12 +63,24 @@ class LogAdapter(context: Context) : RecyclerView.Adapter<LogAdapter.ViewHolder>
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) Color.RED
         else context.themeColor(android.R.attr.colorError)
 
-    var logs = listOf<LogItem>()
-        @SuppressLint("NotifyDataSetChanged")
-        set(value) {
-            field = value
-            notifyDataSetChanged()
-        }
+    private val logs = ArrayList<LogItem>()
+
+    @SuppressLint("NotifyDataSetChanged")
+    fun clear() {
+        logs.clear()
+        notifyDataSetChanged()
+    }
+
+    fun addFirst(items: List<LogItem>) {
+        logs.addAll(0, items)
+        notifyItemRangeInserted(0, items.size)
+    }
+
+    fun addLast(items: List<LogItem>) {
+        val start = logs.size
+        logs.addAll(items)
+        notifyItemRangeInserted(start, items.size)
+    }
 
     inner class ViewHolder(private val binding: LogItemViewBinding) : RecyclerView.ViewHolder(binding.root) {
         fun bind(logItem: LogItem) {
@@ -79,7 +107,7 @@ class LogAdapter(context: Context) : RecyclerView.Adapter<LogAdapter.ViewHolder>
 
     override fun getItemCount() = logs.size
 
-    override fun getItemId(position: Int) = logs[position].hashCode().toLong()
+    override fun getItemId(position: Int) = logs[position].seq
 
     override fun onBindViewHolder(holder: ViewHolder, position: Int) = holder.bind(logs[position])
 }
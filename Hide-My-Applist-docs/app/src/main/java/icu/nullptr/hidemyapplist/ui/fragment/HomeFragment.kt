@@ -42,11 +42,9 @@ class HomeFragment : Fragment(R.layout.fragment_home) {
     private val backupSAFLauncher =
         registerForActivityResult(CreateDocument("application/json")) backup@{ uri ->
             if (uri == null) return@backup
-            ConfigManager.configFile.inputStream().use { input ->
-                hmaApp.contentResolver.openOutputStream(uri).use { output ->
-                    if (output == null) makeToast(R.string.home_export_failed)
-                    else input.copyTo(output)
-                }
+            hmaApp.contentResolver.openOutputStream(uri).use { output ->
+                if (output == null) makeToast(R.string.home_export_failed)
+                else output.write(ConfigManager.exportConfig().toByteArray())
             }
             makeToast(R.string.home_exported)
         }
@@ -5,108 +5,187 @@ import android.view.MenuItem
 import android.view.View
 import androidx.activity.result.contract.ActivityResultContracts
 import androidx.fragment.app.Fragment
+import androidx.lifecycle.Lifecycle
 import androidx.lifecycle.lifecycleScope
+import androidx.lifecycle.repeatOnLifecycle
 import androidx.recyclerview.widget.DividerItemDecoration
 import androidx.recyclerview.widget.LinearLayoutManager
+import androidx.recyclerview.widget.RecyclerView
 import by.kirich1409.viewbindingdelegate.viewBinding
 import com.tsng.hidemyapplist.R
 import com.tsng.hidemyapplist.databinding.FragmentLogsBinding
+import icu.nullptr.hidemyapplist.common.LogRecord
 import icu.nullptr.hidemyapplist.hmaApp
 import icu.nullptr.hidemyapplist.service.PrefManager
 import icu.nullptr.hidemyapplist.service.ServiceClient
 import icu.nullptr.hidemyapplist.ui.adapter.LogAdapter
 import icu.nullptr.hidemyapplist.ui.util.makeToast
 import icu.nullptr.hidemyapplist.ui.util.setupToolbar
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import java.io.OutputStream
 import java.text.SimpleDateFormat
 import java.util.*
 
 
 class LogsFragment : Fragment(R.layout.fragment_logs) {
 
+    companion object {
+        private const val PAGE_SIZE = 100
+        private const val PREFETCH_DISTANCE = 20
+        private const val TAIL_INTERVAL = 2000L
+    }
+
     private val binding by viewBinding<FragmentLogsBinding>()
     private val adapter by lazy { LogAdapter(requireContext()) }
-    private var logCache: String? = null
+
+    // Seq range fetched so far; pages and tails never transfer a record twice
+    private val fetchLock = Mutex()
+    private var oldestSeq = Long.MAX_VALUE
+    private var newestSeq = -1L
+    private var hasOlder = true
+    private var loadingOlder = false
+    // Bumped on reload so fetches already in flight drop their pages
+    private var generation = 0
+
+    private val newestFirst get() = !PrefManager.logFilter_reverseOrder
 
     private val saveSAFLauncher =
         registerForActivityResult(ActivityResultContracts.CreateDocument("text/x-log")) save@{ uri ->
             if (uri == null) return@save
-            if (logCache.isNullOrEmpty()) {
-                makeToast(R.string.logs_empty)
-                return@save
-            }
-            hmaApp.contentResolver.openOutputStream(uri).use { output ->
-                if (output == null) makeToast(R.string.home_export_failed)
-                else output.write(logCache!!.toByteArray())
+            lifecycleScope.launch {
+                val result = withContext(Dispatchers.IO) {
+                    hmaApp.contentResolver.openOutputStream(uri).use { output ->
+                        when {
+                            output == null -> R.string.home_export_failed
+                            !exportLogs(output) -> R.string.logs_empty
+                            else -> R.string.logs_saved
+                        }
+                    }
+                }
+                makeToast(result)
             }
-            makeToast(R.string.logs_saved)
         }
 
-    private fun updateLogs() {
-        lifecycleScope.launch {
-            logCache = ServiceClient.logs
-            val raw = logCache?.split("\n")
-            if (raw == null) {
-                binding.serviceOff.visibility = View.VISIBLE
-            } else {
-                binding.serviceOff.visibility = View.GONE
-                adapter.logs = buildList {
-                    val cur = StringBuilder()
-                    for (line in raw) {
-                        if (line.startsWith('[')) {
-                            if (cur.isNotEmpty()) {
-                                val log = LogAdapter.parseLog(cur.toString())
-                                if (log != null) add(log)
-                            }
-                            cur.clear()
-                        }
-                        cur.append(line)
+    /** Write the whole runtime log page by page, off the main thread. Returns false if it is empty. */
+    private fun exportLogs(output: OutputStream): Boolean {
+        val writer = output.bufferedWriter()
+        var seq = -1L
+        while (true) {
+            val page = ServiceClient.readLogs(seq, PAGE_SIZE)
+            if (page.isEmpty()) break
+            page.forEach { writer.append(LogAdapter.format(it)) }
+            seq = page.last().seq
+        }
+        writer.flush()
+        return seq != -1L
+    }
+
+    private fun reloadLogs() {
+        if (ServiceClient.serviceVersion == 0) {
+            binding.serviceOff.visibility = View.VISIBLE
+            return
+        }
+        binding.serviceOff.visibility = View.GONE
+        generation++
+        loadingOlder = false
+        adapter.clear()
+        oldestSeq = Long.MAX_VALUE
+        newestSeq = -1L
+        hasOlder = true
+        loadOlder()
+    }
+
+    /** Records come oldest first; place them at the older or newer end of the list. */
+    private fun insert(records: List<LogRecord>, older: Boolean) {
+        val items = records.mapNotNull(LogAdapter::fromRecord)
+        if (items.isEmpty()) return
+        val ordered = if (newestFirst) items.asReversed() else items
+        if (older == newestFirst) adapter.addLast(ordered) else adapter.addFirst(ordered)
+    }
+
+    private fun loadOlder() {
+        if (!hasOlder || loadingOlder) return
+        loadingOlder = true
+        val initial = newestSeq < 0
+        val gen = generation
+        viewLifecycleOwner.lifecycleScope.launch {
+            fetchLock.withLock {
+                // Filtered levels may hide a whole page, so keep going until something shows
+                val before = adapter.itemCount
+                while (gen == generation && hasOlder && adapter.itemCount == before) {
+                    val page = withContext(Dispatchers.IO) {
+                        ServiceClient.readLogsBefore(oldestSeq, PAGE_SIZE)
                     }
-                    if (cur.isNotEmpty()) {
-                        val log = LogAdapter.parseLog(cur.toString())
-                        if (log != null) add(log)
+                    if (gen != generation) break
+                    // Pages may be cut short by size, so only an empty one ends the log
+                    if (page.isEmpty()) {
+                        hasOlder = false
+                        break
                     }
-                    if (!PrefManager.logFilter_reverseOrder) reverse()
+                    oldestSeq = page.first().seq
+                    newestSeq = maxOf(newestSeq, page.last().seq)
+                    insert(page, older = true)
                 }
             }
+            if (gen != generation) return@launch
+            if (initial && !newestFirst) binding.list.scrollToPosition(adapter.itemCount - 1)
+            loadingOlder = false
+        }
+    }
+
+    private suspend fun loadNewer() = fetchLock.withLock {
+        val gen = generation
+        while (true) {
+            val page = withContext(Dispatchers.IO) {
+                ServiceClient.readLogs(newestSeq, PAGE_SIZE)
+            }
+            if (gen != generation || page.isEmpty()) break
+            if (oldestSeq == Long.MAX_VALUE) oldestSeq = page.first().seq
+            newestSeq = page.last().seq
+            insert(page, older = false)
         }
     }
 
     private fun onMenuOptionSelected(item: MenuItem) {
         when (item.itemId) {
-            R.id.menu_refresh -> updateLogs()
+            R.id.menu_refresh -> reloadLogs()
             R.id.menu_save -> {
                 val date = SimpleDateFormat("yyyy-MM-dd_HH.mm.ss", Locale.getDefault()).format(Date())
                 saveSAFLauncher.launch("hma_logs_$date.log")
             }
             R.id.menu_delete -> {
                 ServiceClient.clearLogs()
-                updateLogs()
+                reloadLogs()
             }
             R.id.menu_filter_debug -> {
                 item.isChecked = true
                 PrefManager.logFilter_level = 0
-                updateLogs()
+                reloadLogs()
             }
             R.id.menu_filter_info -> {
                 item.isChecked = true
                 PrefManager.logFilter_level = 1
-                updateLogs()
+                reloadLogs()
             }
             R.id.menu_filter_warn -> {
                 item.isChecked = true
                 PrefManager.logFilter_level = 2
-                updateLogs()
+                reloadLogs()
             }
             R.id.menu_filter_error -> {
                 item.isChecked = true
                 PrefManager.logFilter_level = 3
-                updateLogs()
+                reloadLogs()
             }
             R.id.menu_reverse_order -> {
                 item.isChecked = !item.isChecked
                 PrefManager.logFilter_reverseOrder = item.isChecked
-                updateLogs()
+                reloadLogs()
             }
         }
     }
@@ -132,6 +211,24 @@ class LogsFragment : Fragment(R.layout.fragment_logs) {
         binding.list.layoutManager = LinearLayoutManager(context)
         binding.list.adapter = adapter
         binding.list.addItemDecoration(DividerItemDecoration(requireContext(), DividerItemDecoration.VERTICAL))
-        updateLogs()
+        binding.list.addOnScrollListener(object : RecyclerView.OnScrollListener() {
+            override fun onScrolled(recyclerView: RecyclerView, dx: Int, dy: Int) {
+                val layoutManager = recyclerView.layoutManager as LinearLayoutManager
+                val nearOlderEnd =
+                    if (newestFirst) layoutManager.findLastVisibleItemPosition() >= adapter.itemCount - PREFETCH_DISTANCE
+                    else layoutManager.findFirstVisibleItemPosition() <= PREFETCH_DISTANCE
+                if (nearOlderEnd) loadOlder()
+            }
+        })
+        reloadLogs()
+
+        viewLifecycleOwner.lifecycleScope.launch {
+            viewLifecycleOwner.repeatOnLifecycle(Lifecycle.State.STARTED) {
+                while (true) {
+                    delay(TAIL_INTERVAL)
+                    if (binding.serviceOff.visibility == View.GONE) loadNewer()
+                }
+            }
+        }
     }
 }
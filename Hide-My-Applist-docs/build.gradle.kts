@@ -29,7 +29,7 @@ val buildToolsVer by extra("35.0.1")
 
 val appVerName by extra("3.4")
 val configVerCode by extra(90)
-val serviceVerCode by extra(97)
+val serviceVerCode by extra(98)
 val minBackupVerCode by extra(65)
 
 val androidSourceCompatibility = JavaVersion.VERSION_21
@@ -0,0 +1,55 @@
+package icu.nullptr.hidemyapplist.common
+
+import kotlinx.serialization.SerialName
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+
+private val encoder = Json {
+    encodeDefaults = true
+    ignoreUnknownKeys = true
+}
+
+/**
+ * Incremental change to [JsonConfig], sent instead of the whole config.
+ *
+ * The service applies a patch only if [baseRevision] is the revision it holds, and
+ * answers with the new revision. Any mismatch makes the client fall back to a full sync.
+ */
+@Serializable
+data class ConfigPatch(
+    val configVersion: Int = BuildConfig.CONFIG_VERSION,
+    val baseRevision: Long,
+    val ops: List<Op>
+) {
+    @Serializable
+    sealed class Op {
+
+        @Serializable
+        @SerialName("upsert_scope")
+        data class UpsertScope(val packageName: String, val appConfig: JsonConfig.AppConfig) : Op()
+
+        @Serializable
+        @SerialName("remove_scope")
+        data class RemoveScope(val packageName: String) : Op()
+
+        @Serializable
+        @SerialName("upsert_template")
+        data class UpsertTemplate(val name: String, val template: JsonConfig.Template) : Op()
+
+        @Serializable
+        @SerialName("remove_template")
+        data class RemoveTemplate(val name: String) : Op()
+
+        @Serializable
+        @SerialName("settings")
+        data class Settings(val detailLog: Boolean, val maxLogSize: Int, val forceMountData: Boolean) : Op()
+    }
+
+    companion object {
+        fun parse(json: String) = encoder.decodeFromString<ConfigPatch>(json)
+    }
+
+    override fun toString() = encoder.encodeToString(this)
+}
@@ -0,0 +1,59 @@
+package icu.nullptr.hidemyapplist.common;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * One record of the service log. {@code seq} grows by one per record for the whole
+ * service lifetime, so clients page and tail the log by sequence number.
+ */
+public final class LogRecord implements Parcelable {
+
+    public final long seq;
+    public final long time;
+    public final int level;
+    public final String tag;
+    public final String message;
+
+    public LogRecord(long seq, long time, int level, String tag, String message) {
+        this.seq = seq;
+        this.time = time;
+        this.level = level;
+        this.tag = tag;
+        this.message = message;
+    }
+
+    private LogRecord(Parcel in) {
+        seq = in.readLong();
+        time = in.readLong();
+        level = in.readInt();
+        tag = in.readString();
+        message = in.readString();
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(seq);
+        dest.writeLong(time);
+        dest.writeInt(level);
+        dest.writeString(tag);
+        dest.writeString(message);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public static final Creator<LogRecord> CREATOR = new Creator<>() {
+        @Override
+        public LogRecord createFromParcel(Parcel in) {
+            return new LogRecord(in);
+        }
+
+        @Override
+        public LogRecord[] newArray(int size) {
+            return new LogRecord[size];
+        }
+    };
+}
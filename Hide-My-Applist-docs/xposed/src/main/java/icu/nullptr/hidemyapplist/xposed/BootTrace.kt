@@ -0,0 +1,52 @@
+package icu.nullptr.hidemyapplist.xposed
+
+import android.os.SystemClock
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Durations of the service's boot phases, reported as a single log line.
+ *
+ * Startup runs on two threads (registration and the package index), so the report is logged
+ * by whichever of them calls [complete] last.
+ */
+object BootTrace {
+
+    private const val TAG = "HMA-BootTrace"
+    private const val PARTS = 2
+
+    private val startedAt = SystemClock.elapsedRealtime()
+    private val phases = ConcurrentLinkedQueue<Pair<String, Long>>()
+    private val remaining = AtomicInteger(PARTS)
+
+    inline fun <T> phase(name: String, block: () -> T): T {
+        val begin = SystemClock.elapsedRealtime()
+        try {
+            return block()
+        } finally {
+            record(name, SystemClock.elapsedRealtime() - begin)
+        }
+    }
+
+    fun record(name: String, millis: Long) {
+        phases += name to millis
+    }
+
+    /** One part of startup is over; log the report once every part is. */
+    fun complete() {
+        if (remaining.decrementAndGet() == 0) logI(TAG, "Boot timing: ${report()}")
+    }
+
+    /** Startup failed, so the other parts will never complete; log the phases recorded so far. */
+    fun abort() {
+        if (remaining.getAndSet(0) > 0) logE(TAG, "Boot failed, timing so far: ${report()}")
+    }
+
+    /** Every phase recorded so far, after the time since boot at which the service started. */
+    fun report() = buildString {
+        append("started ").append(startedAt).append(" ms after boot")
+        for ((name, millis) in phases) {
+            append(", ").append(name).append(' ').append(millis).append(" ms")
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package icu.nullptr.hidemyapplist.xposed
+
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Filter counters, total and broken down by hook and by caller.
+ *
+ * [record] runs on PMS binder threads, so it only bumps [LongAdder]s and never touches
+ * a file or a lock. A background thread flushes the counts every [FLUSH_INTERVAL] seconds
+ * if they changed, replacing the files atomically.
+ */
+class FilterStats(dataDir: String) {
+
+    companion object {
+        private const val TAG = "HMA-FilterStats"
+        private const val FLUSH_INTERVAL = 30L
+        private const val KIND_HOOK = "hook"
+        private const val KIND_CALLER = "caller"
+    }
+
+    private val countFile = File("$dataDir/filter_count")
+    private val statsFile = File("$dataDir/filter_stats")
+
+    private val total = LongAdder()
+    private val hooks = ConcurrentHashMap<String, LongAdder>()
+    private val callers = ConcurrentHashMap<String, LongAdder>()
+
+    // Only touched by the flusher thread
+    private var flushedTotal = 0L
+
+    private val flusher = Executors.newSingleThreadScheduledExecutor {
+        Thread(it, TAG).apply { isDaemon = true }
+    }
+
+    init {
+        load()
+        flusher.scheduleWithFixedDelay(::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.SECONDS)
+    }
+
+    val count get() = total.sum()
+
+    fun record(hook: String, caller: String) {
+        total.increment()
+        hooks.getOrPut(hook, ::LongAdder).increment()
+        callers.getOrPut(caller, ::LongAdder).increment()
+    }
+
+    /** One `kind<TAB>name<TAB>count` line per hook and per caller, highest count first. */
+    fun dump() = buildString {
+        dump(KIND_HOOK, hooks)
+        dump(KIND_CALLER, callers)
+    }
+
+    private fun StringBuilder.dump(kind: String, counters: Map<String, LongAdder>) {
+        counters.mapValues { it.value.sum() }.entries.sortedByDescending { it.value }.forEach {
+            append(kind).append('\t').append(it.key).append('\t').append(it.value).append('\n')
+        }
+    }
+
+    /**
+     * Stop the flusher, writing pending counts first unless [discard] is set,
+     * e.g. when the data dir is about to be deleted.
+     */
+    fun close(discard: Boolean) {
+        if (!discard) flusher.execute(::flush)
+        flusher.shutdown()
+    }
+
+    private fun load() {
+        runCatching {
+            if (countFile.exists()) total.add(countFile.readText().trim().toLong())
+            statsFile.takeIf(File::exists)?.forEachLine { line ->
+                val fields = line.split('\t')
+                if (fields.size != 3) return@forEachLine
+                val counters = when (fields[0]) {
+                    KIND_HOOK -> hooks
+                    KIND_CALLER -> callers
+                    else -> return@forEachLine
+                }
+                counters.getOrPut(fields[1], ::LongAdder).add(fields[2].toLong())
+            }
+        }.onFailure {
+            logW(TAG, "Failed to load filter stats, reset to 0", it)
+            total.reset()
+            hooks.clear()
+            callers.clear()
+        }
+        flushedTotal = total.sum()
+    }
+
+    private fun flush() {
+        val sum = total.sum()
+        if (sum == flushedTotal) return
+        runCatching {
+            Utils.writeAtomically(countFile, sum.toString())
+            Utils.writeAtomically(statsFile, dump())
+            flushedTotal = sum
+        }.onFailure {
+            logW(TAG, "Failed to flush filter stats", it)
+        }
+    }
+}
@@ -2,50 +2,87 @@ package icu.nullptr.hidemyapplist.xposed
 
 import android.content.pm.ApplicationInfo
 import android.content.pm.IPackageManager
+import android.content.pm.PackageManager
 import android.os.Build
+import android.os.UserHandle
 import icu.nullptr.hidemyapplist.common.*
 import icu.nullptr.hidemyapplist.xposed.hook.*
 import java.io.File
+import java.util.BitSet
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
 
 class HMAService(val pms: IPackageManager) : IHMAService.Stub() {
 
     companion object {
         private const val TAG = "HMA-Service"
+        // Records per page; LogStore also cuts a page at LogStore.MAX_PAGE_BYTES
+        private const val MAX_LOG_PAGE = 500
+        // Bursts of patches within this window are written to disk once
+        private const val SAVE_DELAY = 2000L
         var instance: HMAService? = null
     }
 
     @Volatile
     var logcatAvailable = false
 
-    private lateinit var dataDir: String
+    lateinit var dataDir: String
+        private set
     private lateinit var configFile: File
-    private lateinit var logFile: File
-    private lateinit var oldLogFile: File
+    private lateinit var logStore: LogStore
 
     private val configLock = Any()
-    private val loggerLock = Any()
-    private val systemApps = mutableSetOf<String>()
+    val packages = PackageIndex()
     private val frameworkHooks = mutableSetOf<IFrameworkHook>()
 
+    @Volatile
     var config = JsonConfig().apply { detailLog = true }
         private set
 
-    var filterCount = 0
-        @JvmName("getFilterCountInternal") get
-        set(value) {
-            field = value
-            if (field % 100 == 0) {
-                synchronized(configLock) {
-                    File("$dataDir/filter_count").writeText(field.toString())
-                }
-            }
-        }
+    /** Compiled from [config]; hooks read it without locking, so it is only ever swapped whole. */
+    @Volatile
+    private var index = RuleIndex.EMPTY
+
+    /**
+     * App ids with a package in scope, so [isScopedUid] needs no PMS call. Null until the
+     * package index is ready, which builds it once off the boot path.
+     */
+    @Volatile
+    private var scopedAppIds: BitSet? = null
+
+    // Guarded by configLock
+    private var configRevision = 0L
+    private var saveScheduled = false
+    // Config of a newer version, only written for the next boot
+    private var nextBootConfig: String? = null
+
+    private val configWriter = Executors.newSingleThreadScheduledExecutor {
+        Thread(it, "HMA-ConfigWriter").apply { isDaemon = true }
+    }
+
+    private lateinit var filterStats: FilterStats
 
     init {
-        searchDataDir()
-        instance = this
-        loadConfig()
-        installHooks()
+        try {
+            BootTrace.phase("data dir") { searchDataDir() }
+            instance = this
+            BootTrace.phase("config") { loadConfig() }
+            BootTrace.phase("hooks") { installHooks() }
+        } catch (e: Throwable) {
+            // The index thread never starts, so the report would not be logged otherwise
+            BootTrace.abort()
+            throw e
+        }
+        // Hooks fall back to PMS until the index is ready, so the scan stays off the boot path
+        thread(name = "HMA-PackageIndex", isDaemon = true) {
+            runCatching {
+                BootTrace.phase("package index") { indexPackages() }
+            }.onFailure {
+                logE(TAG, "Failed to index packages", it)
+            }
+            BootTrace.complete()
+        }
         logI(TAG, "HMA service initialized")
     }
 
@@ -74,26 +111,15 @@ class HMAService(val pms: IPackageManager) : IHMAService.Stub() {
             dataDir = "/data/misc/hide_my_applist_" + Utils.generateRandomString(16)
         }
 
-        File("$dataDir/log").mkdirs()
         configFile = File("$dataDir/config.json")
-        logFile = File("$dataDir/log/runtime.log")
-        oldLogFile = File("$dataDir/log/old.log")
-        logFile.renameTo(oldLogFile)
-        logFile.createNewFile()
+        logStore = LogStore(File("$dataDir/log"))
 
         logcatAvailable = true
         logI(TAG, "Data dir: $dataDir")
     }
 
     private fun loadConfig() {
-        File("$dataDir/filter_count").also {
-            runCatching {
-                if (it.exists()) filterCount = it.readText().toInt()
-            }.onFailure { e ->
-                logW(TAG, "Failed to load filter count, set to 0", e)
-                it.writeText("0")
-            }
-        }
+        filterStats = FilterStats(dataDir)
         if (!configFile.exists()) {
             logI(TAG, "Config file not found")
             return
@@ -109,15 +135,23 @@ class HMAService(val pms: IPackageManager) : IHMAService.Stub() {
             logW(TAG, "Config version mismatch, need to reload")
             return
         }
+        index = RuleIndex.compile(loading)
         config = loading
-        logI(TAG, "Config loaded")
+        logI(TAG, "Config loaded, ${index.size} apps in scope")
     }
 
-    private fun installHooks() {
-        Utils.getInstalledApplicationsCompat(pms, 0, 0).mapNotNullTo(systemApps) {
-            if (it.flags and ApplicationInfo.FLAG_SYSTEM != 0) it.packageName else null
+    private fun indexPackages() {
+        val apps = Utils.binderLocalScope {
+            Utils.getInstalledApplicationsCompat(pms, PackageManager.MATCH_UNINSTALLED_PACKAGES.toLong(), 0)
         }
+        packages.seed(apps)
+        synchronized(configLock) {
+            rebuildScopedAppIds()
+        }
+        logI(TAG, "Indexed ${packages.size} packages")
+    }
 
+    private fun installHooks() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
             frameworkHooks.add(PmsHookTarget34(this))
         } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
@@ -136,33 +170,96 @@ class HMAService(val pms: IPackageManager) : IHMAService.Stub() {
         logI(TAG, "Hooks installed")
     }
 
-    fun isHookEnabled(packageName: String) = config.scope.containsKey(packageName)
+    fun recordFilter(hook: String, caller: String) = filterStats.record(hook, caller)
+
+    fun isHookEnabled(packageName: String) = packageName in index
+
+    fun isScopedUid(uid: Int): Boolean {
+        val appIds = scopedAppIds ?: return getPackagesForUid(uid)?.any { it in index } == true
+        return appIds.get(UserHandle.getAppId(uid))
+    }
+
+    /** Packages of [uid] from the package index, asking PMS only for uids it does not know. */
+    fun getPackagesForUid(uid: Int): Array<String>? {
+        return packages.packagesForUid(uid) ?: Utils.binderLocalScope {
+            pms.getPackagesForUid(uid)
+        }
+    }
+
+    /**
+     * Look up the app id of every scoped package in the package index. Does nothing until the
+     * index is ready, since [indexPackages] builds it then. Call with configLock held.
+     */
+    private fun rebuildScopedAppIds() {
+        if (!packages.isReady) return
+        val appIds = BitSet()
+        for (packageName in config.scope.keys) {
+            val uid = packages[packageName]?.uid ?: continue
+            appIds.set(UserHandle.getAppId(uid))
+        }
+        scopedAppIds = appIds
+    }
+
+    /** Whether [packageName] is a system app, asking PMS only while the index is not ready. */
+    fun isSystemApp(packageName: String): Boolean {
+        if (packages.isReady) return packages.isSystem(packageName)
+        val app = queryApplication(packageName) ?: return false
+        return app.flags and ApplicationInfo.FLAG_SYSTEM != 0
+    }
+
+    private fun queryApplication(packageName: String): ApplicationInfo? {
+        return runCatching {
+            Utils.binderLocalScope {
+                Utils.getApplicationInfoCompat(pms, packageName, PackageManager.MATCH_UNINSTALLED_PACKAGES.toLong(), 0)
+            }
+        }.getOrNull()
+    }
+
+    /** A package was installed or updated, possibly changing its uid or system flag. */
+    fun onPackageAdded(packageName: String) {
+        val app = queryApplication(packageName) ?: return
+        packages.put(app)
+        logD(TAG, "Package added: $packageName ${app.uid}")
+        if (packageName !in index) return
+        synchronized(configLock) {
+            val appIds = scopedAppIds?.clone() as BitSet? ?: return
+            appIds.set(UserHandle.getAppId(app.uid))
+            scopedAppIds = appIds
+        }
+    }
+
+    /** A package was removed for some user; it stays indexed while any user still has it. */
+    fun onPackageRemoved(packageName: String) {
+        val app = queryApplication(packageName)
+        if (app == null) packages.remove(packageName) else packages.put(app)
+        logD(TAG, "Package removed: $packageName")
+        if (packageName !in index) return
+        // Another scoped package may share the uid, so look them all up again
+        synchronized(configLock) {
+            rebuildScopedAppIds()
+        }
+    }
 
     fun shouldHide(caller: String?, query: String?): Boolean {
         if (caller == null || query == null) return false
         if (caller in Constants.packagesShouldNotHide || query in Constants.packagesShouldNotHide) return false
         if ((caller == Constants.GMS_PACKAGE_NAME || caller == Constants.GSF_PACKAGE_NAME) && query == Constants.APP_PACKAGE_NAME) return false // If apply hide on gms, hma app will crash 😓
         if (caller == query) return false
-        val appConfig = config.scope[caller] ?: return false
-        if (appConfig.useWhitelist && appConfig.excludeSystemApps && query in systemApps) return false
-
-        if (query in appConfig.extraAppList) return !appConfig.useWhitelist
-        for (tplName in appConfig.applyTemplates) {
-            val tpl = config.templates[tplName]!!
-            if (query in tpl.appList) return !appConfig.useWhitelist
-        }
-
-        return appConfig.useWhitelist
+        val scope = index[caller] ?: return false
+        if (scope.useWhitelist && scope.excludeSystemApps && isSystemApp(query)) return false
+        return (query in scope.targets) != scope.useWhitelist
     }
 
     override fun stopService(cleanEnv: Boolean) {
         logI(TAG, "Stop service")
-        synchronized(loggerLock) {
-            logcatAvailable = false
-        }
+        logcatAvailable = false
+        logStore.close()
         synchronized(configLock) {
             frameworkHooks.forEach(IFrameworkHook::unload)
             frameworkHooks.clear()
+            filterStats.close(discard = cleanEnv)
+            // A pending save still runs after shutdown unless the data dir is going away
+            if (cleanEnv) configWriter.shutdownNow() else configWriter.shutdown()
             if (cleanEnv) {
                 logI(TAG, "Clean runtime environment")
                 File(dataDir).deleteRecursively()
@@ -172,41 +269,112 @@ class HMAService(val pms: IPackageManager) : IHMAService.Stub() {
         instance = null
     }
 
-    fun addLog(parsedMsg: String) {
-        synchronized(loggerLock) {
-            if (!logcatAvailable) return
-            if (logFile.length() / 1024 > config.maxLogSize) clearLogs()
-            logFile.appendText(parsedMsg)
-        }
+    fun addLogs(records: List<LogStore.Record>) {
+        if (!logcatAvailable) return
+        logStore.append(records, config.maxLogSize * 1024L)
     }
 
     override fun syncConfig(json: String) {
         synchronized(configLock) {
-            configFile.writeText(json)
             val newConfig = JsonConfig.parse(json)
             if (newConfig.configVersion != BuildConfig.CONFIG_VERSION) {
+                // Written by the config writer, so a pending save of the running config cannot overwrite it
+                nextBootConfig = json
+                if (!configWriter.isShutdown) configWriter.execute(::saveConfig)
                 logW(TAG, "Sync config: version mismatch, need reboot")
                 return
             }
+            index = RuleIndex.compile(newConfig)
             config = newConfig
+            rebuildScopedAppIds()
+            configRevision++
+            scheduleSave()
             frameworkHooks.forEach(IFrameworkHook::onConfigChanged)
         }
         logD(TAG, "Config synced")
     }
 
-    override fun getServiceVersion() = BuildConfig.SERVICE_VERSION
+    override fun applyConfigPatch(json: String): Long {
+        val patch = runCatching { ConfigPatch.parse(json) }.getOrElse {
+            logE(TAG, "Failed to parse config patch", it)
+            return -1
+        }
+        val revision = synchronized(configLock) {
+            if (patch.configVersion != BuildConfig.CONFIG_VERSION || patch.baseRevision != configRevision) {
+                logD(TAG, "Config patch based on ${patch.baseRevision}, have $configRevision, need full sync")
+                return -1
+            }
+            val apps = mutableSetOf<String>()
+            val templates = mutableSetOf<String>()
+            for (op in patch.ops) {
+                when (op) {
+                    is ConfigPatch.Op.UpsertScope -> {
+                        config.scope[op.packageName] = op.appConfig
+                        apps += op.packageName
+                    }
+                    is ConfigPatch.Op.RemoveScope -> {
+                        config.scope.remove(op.packageName)
+                        apps += op.packageName
+                    }
+                    is ConfigPatch.Op.UpsertTemplate -> {
+                        config.templates[op.name] = op.template
+                        templates += op.name
+                    }
+                    is ConfigPatch.Op.RemoveTemplate -> {
+                        config.templates.remove(op.name)
+                        templates += op.name
+                    }
+                    is ConfigPatch.Op.Settings -> {
+                        config.detailLog = op.detailLog
+                        config.maxLogSize = op.maxLogSize
+                        config.forceMountData = op.forceMountData
+                    }
+                }
+            }
+            index = index.patch(config, apps, templates)
+            if (apps.isNotEmpty()) rebuildScopedAppIds()
+            scheduleSave()
+            frameworkHooks.forEach(IFrameworkHook::onConfigChanged)
+            ++configRevision
+        }
+        logD(TAG, "Config patched to revision $revision: ${patch.ops.size} ops")
+        return revision
+    }
 
-    override fun getFilterCount() = filterCount
+    override fun getConfigRevision() = synchronized(configLock) { configRevision }
 
-    override fun getLogs() = synchronized(loggerLock) {
-        logFile.readText()
+    /** Write [config] to disk after [SAVE_DELAY], once for any number of changes meanwhile. Call with configLock held. */
+    private fun scheduleSave() {
+        if (saveScheduled || configWriter.isShutdown) return
+        saveScheduled = true
+        configWriter.schedule(::saveConfig, SAVE_DELAY, TimeUnit.MILLISECONDS)
     }
 
-    override fun clearLogs() {
-        synchronized(loggerLock) {
-            oldLogFile.delete()
-            logFile.renameTo(oldLogFile)
-            logFile.createNewFile()
+    private fun saveConfig() {
+        val json = synchronized(configLock) {
+            saveScheduled = false
+            nextBootConfig ?: config.toString()
+        }
+        runCatching {
+            Utils.writeAtomically(configFile, json)
+        }.onFailure {
+            logE(TAG, "Failed to save config", it)
         }
     }
+
+    override fun getServiceVersion() = BuildConfig.SERVICE_VERSION
+
+    override fun getFilterCount() = filterStats.count.coerceAtMost(Int.MAX_VALUE.toLong()).toInt()
+
+    override fun getFilterStats() = filterStats.dump()
+
+    override fun getLogs() = LogStore.format(logStore.readAll())
+
+    override fun readLogs(afterSeq: Long, limit: Int) = logStore.readAfter(afterSeq, limit.coerceIn(0, MAX_LOG_PAGE))
+
+    override fun readLogsBefore(beforeSeq: Long, limit: Int) = logStore.readBefore(beforeSeq, limit.coerceIn(0, MAX_LOG_PAGE))
+
+    override fun clearLogs() {
+        logStore.rotate()
+    }
 }
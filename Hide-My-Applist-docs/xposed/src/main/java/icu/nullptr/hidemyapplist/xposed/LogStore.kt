@@ -0,0 +1,208 @@
+package icu.nullptr.hidemyapplist.xposed
+
+import android.util.Log
+import icu.nullptr.hidemyapplist.common.LogRecord
+import java.io.*
+import java.text.SimpleDateFormat
+import java.util.*
+
+/**
+ * Append-only store of log records.
+ *
+ * Records are kept as binary frames in one long-lived buffered stream. [append] takes a whole
+ * batch from the log executor and flushes it with a single write. The size is tracked in
+ * memory, so rotation needs no stat per record. Timestamps are stored as epoch millis and
+ * only formatted by [format] when someone reads the log.
+ *
+ * The offset of every record in the current file is kept in memory, so a page of records
+ * is read with one seek instead of a scan from the start. The offsets also give the size of
+ * every record, so a page is cut at [MAX_PAGE_BYTES] before anything is read.
+ */
+class LogStore(dir: File) {
+
+    class Record(
+        val time: Long,
+        val level: Int,
+        val tag: String,
+        val message: String
+    ) {
+        /** Position in the store, assigned by [append]. */
+        var seq = -1L
+            internal set
+
+        override fun toString() = "[${levelName(level)}] ($tag) $message"
+    }
+
+    companion object {
+        private const val DATE_FORMAT = "MM-dd HH:mm:ss"
+        private const val BUFFER_SIZE = 16 * 1024
+        private const val MAX_FRAME = 1 shl 20
+        // Longer messages are cut on append, so a single record always fits in a page
+        private const val MAX_MESSAGE = 16 * 1024
+        // Strings are UTF-16 in a parcel, so a page stays well below the 1 MB binder buffer
+        const val MAX_PAGE_BYTES = 128 * 1024L
+
+        fun levelName(level: Int) = when (level) {
+            Log.DEBUG -> "DEBUG"
+            Log.INFO -> " INFO"
+            Log.WARN -> " WARN"
+            Log.ERROR -> "ERROR"
+            else -> "?????"
+        }
+
+        /** Render [records] in the text form the manager app parses. */
+        fun format(records: List<LogRecord>) = buildString {
+            val dateFormat = SimpleDateFormat(DATE_FORMAT, Locale.getDefault())
+            val date = Date()
+            for (record in records) {
+                date.time = record.time
+                append('[').append(levelName(record.level)).append("] ")
+                append(dateFormat.format(date))
+                append(" (").append(record.tag).append(") ")
+                append(record.message)
+                if (!endsWith('\n')) append('\n')
+            }
+        }
+    }
+
+    private val file = File(dir, "runtime.log")
+    private val oldFile = File(dir, "old.log")
+
+    private var out: DataOutputStream? = null
+    private var size = 0L
+    private var nextSeq = 0L
+    // Seq of the first record in the current file, and the offsets of all its records
+    private var firstSeq = 0L
+    private var offsets = LongArray(256)
+    private var count = 0
+    private var closed = false
+
+    init {
+        dir.mkdirs()
+        // The log of the previous boot becomes the old one
+        rotate()
+    }
+
+    /**
+     * Write [records] and flush them together. Rotates first once the file has grown past
+     * [maxSize] bytes, so a file overshoots by at most one batch.
+     */
+    @Synchronized
+    fun append(records: List<Record>, maxSize: Long) {
+        if (closed || records.isEmpty()) return
+        if (size >= maxSize) rotate()
+        val stream = out ?: open()
+        val start = stream.size()
+        for (record in records) {
+            if (count == offsets.size) offsets = offsets.copyOf(count * 2)
+            offsets[count++] = size + (stream.size() - start)
+            record.seq = nextSeq++
+            stream.writeLong(record.seq)
+            stream.writeLong(record.time)
+            stream.writeByte(record.level)
+            stream.writeFrame(record.tag.toByteArray())
+            val message = if (record.message.length <= MAX_MESSAGE) record.message
+            else record.message.take(MAX_MESSAGE) + "\n... (truncated)"
+            stream.writeFrame(message.toByteArray())
+        }
+        stream.flush()
+        size += stream.size() - start
+    }
+
+    /** Every record of the current file, oldest first. */
+    @Synchronized
+    fun readAll(): List<LogRecord> = readRange(0, count)
+
+    /**
+     * Up to [limit] records with a seq greater than [afterSeq], oldest first.
+     * The page may be cut short by [MAX_PAGE_BYTES]; only an empty page means there is no more.
+     */
+    @Synchronized
+    fun readAfter(afterSeq: Long, limit: Int): List<LogRecord> {
+        if (afterSeq >= nextSeq) return emptyList()
+        val from = (maxOf(afterSeq + 1, firstSeq) - firstSeq).coerceAtMost(count.toLong()).toInt()
+        var end = from
+        val maxEnd = from + minOf(limit, count - from)
+        while (end < maxEnd && (end == from || endOf(end) - offsets[from] <= MAX_PAGE_BYTES)) end++
+        return readRange(from, end - from)
+    }
+
+    /**
+     * Up to [limit] records with a seq less than [beforeSeq], oldest first.
+     * The page may be cut short by [MAX_PAGE_BYTES]; only an empty page means there is no more.
+     */
+    @Synchronized
+    fun readBefore(beforeSeq: Long, limit: Int): List<LogRecord> {
+        val end = (minOf(beforeSeq, nextSeq) - firstSeq).coerceAtLeast(0).toInt()
+        var from = end
+        val minFrom = maxOf(0, end - limit)
+        while (from > minFrom && (from == end || endOf(end - 1) - offsets[from - 1] <= MAX_PAGE_BYTES)) from--
+        return readRange(from, end - from)
+    }
+
+    /** Offset just past record [index]. */
+    private fun endOf(index: Int): Long {
+        return if (index + 1 < count) offsets[index + 1] else size
+    }
+
+    private fun readRange(from: Int, length: Int): List<LogRecord> {
+        if (length <= 0) return emptyList()
+        out?.flush()
+        val records = ArrayList<LogRecord>(length)
+        FileInputStream(file).use { file ->
+            file.channel.position(offsets[from])
+            val input = DataInputStream(BufferedInputStream(file, BUFFER_SIZE))
+            try {
+                repeat(length) { records += decode(input) }
+            } catch (e: EOFException) {
+                // A frame cut short by a crash
+            }
+        }
+        return records
+    }
+
+    /** Move the current file to the old one and start an empty file. */
+    @Synchronized
+    fun rotate() {
+        out?.close()
+        out = null
+        oldFile.delete()
+        file.renameTo(oldFile)
+        size = 0
+        firstSeq = nextSeq
+        count = 0
+    }
+
+    @Synchronized
+    fun close() {
+        closed = true
+        out?.close()
+        out = null
+    }
+
+    private fun open(): DataOutputStream {
+        return DataOutputStream(BufferedOutputStream(FileOutputStream(file, true), BUFFER_SIZE)).also {
+            out = it
+        }
+    }
+
+    private fun DataOutputStream.writeFrame(bytes: ByteArray) {
+        writeInt(bytes.size)
+        write(bytes)
+    }
+
+    private fun DataInputStream.readFrame(): ByteArray {
+        val length = readInt()
+        if (length !in 0..MAX_FRAME) throw EOFException("Corrupted record")
+        return ByteArray(length).also(::readFully)
+    }
+
+    private fun decode(input: DataInputStream): LogRecord {
+        val seq = input.readLong()
+        val time = input.readLong()
+        val level = input.readByte().toInt()
+        val tag = String(input.readFrame())
+        val message = String(input.readFrame())
+        return LogRecord(seq, time, level, tag, message)
+    }
+}
@@ -2,34 +2,40 @@ package icu.nullptr.hidemyapplist.xposed
 
 import android.util.Log
 import de.robv.android.xposed.XposedBridge
-import java.text.SimpleDateFormat
-import java.util.*
+import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicBoolean
 
 private val logExecutor = Executors.newSingleThreadExecutor()
+private val pending = ConcurrentLinkedQueue<PendingLog>()
+private val draining = AtomicBoolean()
 
-private fun parseLog(level: Int, tag: String, msg: String, cause: Throwable? = null) = buildString {
-    val levelStr = when (level) {
-        Log.DEBUG -> "DEBUG"
-        Log.INFO -> " INFO"
-        Log.WARN -> " WARN"
-        Log.ERROR -> "ERROR"
-        else -> "?????"
+private class PendingLog(val time: Long, val level: Int, val tag: String, val msg: String, val cause: Throwable?) {
+
+    fun toRecord(): LogStore.Record {
+        val message = if (cause == null) msg else buildString {
+            append(msg)
+            if (!endsWith('\n')) append('\n')
+            append(Log.getStackTraceString(cause))
+        }
+        return LogStore.Record(time, level, tag, message)
     }
-    val date = SimpleDateFormat("MM-dd HH:mm:ss", Locale.getDefault()).format(Date())
-    append("[$levelStr] $date ($tag) $msg")
-    if (!endsWith('\n')) append('\n')
-    if (cause != null) append(Log.getStackTraceString(cause))
-    if (!endsWith('\n')) append('\n')
+}
+
+/** Hand everything queued so far to the service as one batch. */
+private fun drain() {
+    draining.set(false)
+    val batch = mutableListOf<LogStore.Record>()
+    while (true) batch += (pending.poll() ?: break).toRecord()
+    if (batch.isEmpty()) return
+    batch.forEach { XposedBridge.log(it.toString()) }
+    HMAService.instance?.addLogs(batch)
 }
 
 private fun log(level: Int, tag: String, msg: String, cause: Throwable? = null) {
     if (level <= Log.DEBUG && HMAService.instance?.config?.detailLog == false) return
-    logExecutor.execute {
-        val parsedLog = parseLog(level, tag, msg, cause)
-        HMAService.instance?.addLog(parsedLog)
-        XposedBridge.log(parsedLog)
-    }
+    pending += PendingLog(System.currentTimeMillis(), level, tag, msg, cause)
+    if (draining.compareAndSet(false, true)) logExecutor.execute(::drain)
 }
 
 fun logD(tag: String, msg: String, cause: Throwable? = null) = log(Log.DEBUG, tag, msg, cause)
@@ -0,0 +1,53 @@
+package icu.nullptr.hidemyapplist.xposed
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.UserHandle
+import com.github.kyuubiran.ezxhelper.utils.findMethod
+
+/**
+ * Forwards package add, update and remove broadcasts of every user to [HMAService],
+ * so its package-derived caches follow installs without rescanning PMS.
+ *
+ * Broadcasts are handled on a dedicated thread, since the service takes its config lock
+ * and queries PMS for each of them; the default would be the system_server main looper.
+ */
+class PackageEventReceiver(private val service: HMAService) : BroadcastReceiver() {
+
+    companion object {
+        private const val TAG = "HMA-PackageEvents"
+
+        fun register(service: HMAService) {
+            val context = Utils.getSystemContext()
+            val filter = IntentFilter().apply {
+                addAction(Intent.ACTION_PACKAGE_ADDED)
+                addAction(Intent.ACTION_PACKAGE_REMOVED)
+                addDataScheme("package")
+            }
+            val allUsers = UserHandle::class.java.getField("ALL").get(null)
+            val handler = Handler(HandlerThread("HMA-PackageEvents").apply { start() }.looper)
+            findMethod(context::class.java, findSuper = true) {
+                name == "registerReceiverAsUser" && parameterCount == 5
+            }.invoke(context, PackageEventReceiver(service), allUsers, filter, null, handler)
+            logI(TAG, "Registered")
+        }
+    }
+
+    override fun onReceive(context: Context, intent: Intent) {
+        runCatching {
+            val packageName = intent.data?.schemeSpecificPart ?: return
+            // An update is a remove and an add, both with EXTRA_REPLACING
+            val replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)
+            when (intent.action) {
+                Intent.ACTION_PACKAGE_ADDED -> service.onPackageAdded(packageName)
+                Intent.ACTION_PACKAGE_REMOVED -> if (!replacing) service.onPackageRemoved(packageName)
+            }
+        }.onFailure {
+            logE(TAG, "Failed to handle $intent", it)
+        }
+    }
+}
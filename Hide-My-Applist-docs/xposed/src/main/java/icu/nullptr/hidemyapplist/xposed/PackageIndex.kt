@@ -0,0 +1,98 @@
+package icu.nullptr.hidemyapplist.xposed
+
+import android.content.pm.ApplicationInfo
+import android.os.Process
+import android.os.UserHandle
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Installed packages by name and by app id.
+ *
+ * Filled once by [seed] in the background after the service starts, then kept up to date
+ * one package at a time from package broadcasts, so lookups never need a PMS scan. Until
+ * [isReady], a missing entry means nothing and callers have to ask PMS. Reads take no lock;
+ * writes are serialized.
+ */
+class PackageIndex {
+
+    class Entry(val packageName: String, val uid: Int, val flags: Int) {
+        val isSystem get() = flags and ApplicationInfo.FLAG_SYSTEM != 0
+    }
+
+    companion object {
+        private const val FIRST_APP_ID = Process.FIRST_APPLICATION_UID
+        private const val LAST_APP_ID = Process.LAST_APPLICATION_UID
+    }
+
+    private val byName = ConcurrentHashMap<String, Entry>()
+    private val byAppId = AtomicReferenceArray<Array<String>>(LAST_APP_ID - FIRST_APP_ID + 1)
+    // Packages removed before the index is ready, so the scan does not bring them back
+    private val tombstones = HashSet<String>()
+
+    @Volatile
+    var isReady = false
+        private set
+
+    val size get() = byName.size
+
+    operator fun get(packageName: String): Entry? = byName[packageName]
+
+    fun isSystem(packageName: String) = byName[packageName]?.isSystem == true
+
+    /** Packages sharing the app id of [uid], or null for core uids and unknown app ids. */
+    fun packagesForUid(uid: Int): Array<String>? {
+        val slot = UserHandle.getAppId(uid) - FIRST_APP_ID
+        if (slot !in 0 until byAppId.length()) return null
+        return byAppId.get(slot)
+    }
+
+    /**
+     * Fill the index from a full scan. Package events seen meanwhile are newer, so their
+     * entries are kept and packages they removed are not added back.
+     */
+    @Synchronized
+    fun seed(apps: Collection<ApplicationInfo>) {
+        for (app in apps) {
+            if (!byName.containsKey(app.packageName) && app.packageName !in tombstones) putLocked(app)
+        }
+        tombstones.clear()
+        isReady = true
+    }
+
+    @Synchronized
+    fun put(app: ApplicationInfo) {
+        if (!isReady) tombstones -= app.packageName
+        putLocked(app)
+    }
+
+    @Synchronized
+    fun remove(packageName: String) {
+        if (!isReady) tombstones += packageName
+        val old = byName.remove(packageName) ?: return
+        unlink(old.packageName, old.uid)
+    }
+
+    private fun putLocked(app: ApplicationInfo) {
+        val old = byName.put(app.packageName, Entry(app.packageName, app.uid, app.flags))
+        if (old != null && UserHandle.getAppId(old.uid) != UserHandle.getAppId(app.uid)) {
+            unlink(old.packageName, old.uid)
+        }
+        link(app.packageName, app.uid)
+    }
+
+    private fun link(packageName: String, uid: Int) {
+        val slot = UserHandle.getAppId(uid) - FIRST_APP_ID
+        if (slot !in 0 until byAppId.length()) return
+        val current = byAppId.get(slot)
+        if (current == null) byAppId.set(slot, arrayOf(packageName))
+        else if (packageName !in current) byAppId.set(slot, current + packageName)
+    }
+
+    private fun unlink(packageName: String, uid: Int) {
+        val slot = UserHandle.getAppId(uid) - FIRST_APP_ID
+        if (slot !in 0 until byAppId.length()) return
+        val rest = byAppId.get(slot)?.filter { it != packageName } ?: return
+        byAppId.set(slot, if (rest.isEmpty()) null else rest.toTypedArray())
+    }
+}
@@ -0,0 +1,82 @@
+package icu.nullptr.hidemyapplist.xposed
+
+import icu.nullptr.hidemyapplist.common.JsonConfig
+
+/**
+ * Config compiled for [HMAService.shouldHide].
+ *
+ * Every scoped app gets one flattened target set (extra apps plus the app lists of all
+ * applied templates), so a query is a single hash lookup however many templates are applied.
+ * Instances are immutable and replaced as a whole; [patch] reuses every scope a change
+ * does not touch.
+ */
+class RuleIndex private constructor(private val scopes: Map<String, Scope>) {
+
+    class Scope(
+        val useWhitelist: Boolean,
+        val excludeSystemApps: Boolean,
+        val targets: Set<String>
+    )
+
+    companion object {
+        val EMPTY = RuleIndex(emptyMap())
+
+        fun compile(config: JsonConfig): RuleIndex {
+            if (config.scope.isEmpty()) return EMPTY
+            // Apps sharing the same templates and extras share one target set
+            val shared = mutableMapOf<Pair<Set<String>, Set<String>>, Set<String>>()
+            val scopes = HashMap<String, Scope>(config.scope.size * 2)
+            for ((app, appConfig) in config.scope) {
+                val key = appConfig.applyTemplates.toSet() to appConfig.extraAppList.toSet()
+                val targets = shared.getOrPut(key) { flatten(config, key.first, key.second) }
+                scopes[app] = Scope(appConfig.useWhitelist, appConfig.excludeSystemApps, targets)
+            }
+            return RuleIndex(scopes)
+        }
+
+        private fun compileScope(config: JsonConfig, appConfig: JsonConfig.AppConfig): Scope {
+            val targets = flatten(config, appConfig.applyTemplates, appConfig.extraAppList)
+            return Scope(appConfig.useWhitelist, appConfig.excludeSystemApps, targets)
+        }
+
+        private fun flatten(config: JsonConfig, templates: Set<String>, extras: Set<String>): Set<String> {
+            val targets = HashSet<String>(extras)
+            for (name in templates) {
+                val template = config.templates[name]
+                if (template == null) {
+                    logW("HMA-RuleIndex", "Template $name not found, skipped")
+                    continue
+                }
+                targets.addAll(template.appList)
+            }
+            return targets
+        }
+    }
+
+    val size get() = scopes.size
+
+    /**
+     * Index for [config] after the scopes of [apps] and the templates named [templates] changed.
+     * Only those apps and the apps applying those templates are compiled again.
+     */
+    fun patch(config: JsonConfig, apps: Set<String>, templates: Set<String>): RuleIndex {
+        if (apps.isEmpty() && templates.isEmpty()) return this
+        val affected = HashSet(apps)
+        if (templates.isNotEmpty()) {
+            for ((app, appConfig) in config.scope) {
+                if (appConfig.applyTemplates.any(templates::contains)) affected += app
+            }
+        }
+        val patched = HashMap(scopes)
+        for (app in affected) {
+            val appConfig = config.scope[app]
+            if (appConfig == null) patched.remove(app)
+            else patched[app] = compileScope(config, appConfig)
+        }
+        return if (patched.isEmpty()) EMPTY else RuleIndex(patched)
+    }
+
+    operator fun get(packageName: String) = scopes[packageName]
+
+    operator fun contains(packageName: String) = scopes.containsKey(packageName)
+}
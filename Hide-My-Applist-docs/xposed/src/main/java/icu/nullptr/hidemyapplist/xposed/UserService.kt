@@ -10,6 +10,7 @@ import icu.nullptr.hidemyapplist.common.BuildConfig
 import icu.nullptr.hidemyapplist.common.Constants
 import rikka.hidden.compat.ActivityManagerApis
 import rikka.hidden.compat.adapter.UidObserverAdapter
+import java.io.File
 
 object UserService {
 
@@ -50,29 +51,53 @@ object UserService {
     }
 
     fun register(pms: IPackageManager) {
+        try {
+            registerService(pms)
+        } finally {
+            BootTrace.complete()
+        }
+    }
+
+    private fun registerService(pms: IPackageManager) {
         logI(TAG, "Initialize HMAService - Version ${BuildConfig.SERVICE_VERSION}")
         val service = HMAService(pms)
-        appUid = Utils.getPackageUidCompat(service.pms, Constants.APP_PACKAGE_NAME, 0, 0)
-        val appPackage = Utils.getPackageInfoCompat(service.pms, Constants.APP_PACKAGE_NAME, 0, 0)
-        if (!Utils.verifyAppSignature(appPackage.applicationInfo?.sourceDir.toString())) {
+        val appInfo = Utils.getPackageInfoCompat(service.pms, Constants.APP_PACKAGE_NAME, 0, 0).applicationInfo
+        appUid = appInfo?.uid ?: 0
+        val verified = BootTrace.phase("verify") {
+            Utils.verifyAppSignatureCached(appInfo?.sourceDir.toString(), File(service.dataDir, "apk_verify_cache"))
+        }
+        if (!verified) {
             logE(TAG, "Fatal: App signature mismatch")
             return
         }
         logD(TAG, "Client uid: $appUid")
         logI(TAG, "Register observer")
 
-        waitSystemService("activity")
-        ActivityManagerApis.registerUidObserver(
-            uidObserver,
-            ActivityManagerHidden.UID_OBSERVER_ACTIVE,
-            ActivityManagerHidden.PROCESS_STATE_UNKNOWN,
-            null
-        )
+        BootTrace.phase("wait activity") { waitSystemService("activity") }
+        BootTrace.phase("observers") {
+            runCatching {
+                PackageEventReceiver.register(service)
+            }.onFailure {
+                logE(TAG, "Failed to register package receiver", it)
+            }
+            ActivityManagerApis.registerUidObserver(
+                uidObserver,
+                ActivityManagerHidden.UID_OBSERVER_ACTIVE,
+                ActivityManagerHidden.PROCESS_STATE_UNKNOWN,
+                null
+            )
+        }
     }
 
     private fun waitSystemService(name: String) {
+        if (ServiceManager.getService(name) != null) return
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            // Blocks on a servicemanager registration callback instead of polling
+            val binder = runCatching { ServiceManager.waitForService(name) }.getOrNull()
+            if (binder != null) return
+        }
         while (ServiceManager.getService(name) == null) {
-            Thread.sleep(1000)
+            Thread.sleep(200)
         }
     }
 }
@@ -1,5 +1,6 @@
 package icu.nullptr.hidemyapplist.xposed
 
+import android.content.Context
 import android.content.pm.ApplicationInfo
 import android.content.pm.IPackageManager
 import android.content.pm.PackageInfo
@@ -7,8 +8,12 @@ import android.os.Binder
 import android.os.Build
 import com.android.apksig.ApkVerifier
 import com.github.kyuubiran.ezxhelper.utils.findField
+import com.github.kyuubiran.ezxhelper.utils.findMethod
 import icu.nullptr.hidemyapplist.Magic
 import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.security.MessageDigest
 import java.util.*
 
 object Utils {
@@ -35,6 +40,47 @@ object Utils {
         return mainCert.encoded.contentEquals(Magic.magicNumbers)
     }
 
+    /**
+     * [verifyAppSignature], remembered in [cacheFile] by APK path, size, mtime and certificate
+     * digest. An unchanged APK is accepted without another full verification pass.
+     */
+    fun verifyAppSignatureCached(path: String, cacheFile: File): Boolean {
+        val apk = File(path)
+        val certDigest = MessageDigest.getInstance("SHA-256").digest(Magic.magicNumbers)
+            .joinToString("") { "%02x".format(it) }
+        val key = "$path\t${apk.length()}\t${apk.lastModified()}\t$certDigest"
+        if (runCatching { cacheFile.readText() }.getOrNull() == key) return true
+        if (!verifyAppSignature(path)) {
+            cacheFile.delete()
+            return false
+        }
+        runCatching { writeAtomically(cacheFile, key) }
+        return true
+    }
+
+    /** Replace [file] with [text] through a synced temp file and a rename, so readers never see a partial write. */
+    fun writeAtomically(file: File, text: String) {
+        val tmp = File(file.path + ".tmp")
+        FileOutputStream(tmp).use {
+            it.write(text.toByteArray())
+            it.fd.sync()
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete()
+            throw IOException("Failed to replace $file")
+        }
+    }
+
+    /** The system_server context, for registering receivers. */
+    fun getSystemContext(): Context {
+        val activityThread = findMethod("android.app.ActivityThread") {
+            name == "currentActivityThread"
+        }.invoke(null)
+        return findMethod("android.app.ActivityThread") {
+            name == "getSystemContext"
+        }.invoke(activityThread) as Context
+    }
+
     fun <T> binderLocalScope(block: () -> T): T {
         val identity = Binder.clearCallingIdentity()
         val result = block()
@@ -66,6 +112,14 @@ object Utils {
         }
     }
 
+    fun getApplicationInfoCompat(pms: IPackageManager, packageName: String, flags: Long, userId: Int): ApplicationInfo? {
+        return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            pms.getApplicationInfo(packageName, flags, userId)
+        } else {
+            pms.getApplicationInfo(packageName, flags.toInt(), userId)
+        }
+    }
+
     fun getPackageInfoCompat(pms: IPackageManager, packageName: String, flags: Long, userId: Int): PackageInfo {
         return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
             pms.getPackageInfo(packageName, flags, userId)
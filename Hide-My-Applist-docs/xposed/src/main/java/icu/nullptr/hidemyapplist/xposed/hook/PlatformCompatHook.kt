@@ -8,7 +8,6 @@ import com.github.kyuubiran.ezxhelper.utils.hookBefore
 import de.robv.android.xposed.XC_MethodHook
 import icu.nullptr.hidemyapplist.common.CommonUtils
 import icu.nullptr.hidemyapplist.xposed.HMAService
-import icu.nullptr.hidemyapplist.xposed.Utils
 import icu.nullptr.hidemyapplist.xposed.logE
 import icu.nullptr.hidemyapplist.xposed.logI
 
@@ -33,15 +32,10 @@ class PlatformCompatHook(private val service: HMAService) : IFrameworkHook {
                 val changeId = param.args[0] as Long
                 val appInfo = param.args[1] as ApplicationInfo
                 if (changeId.toInt() != 143937733) return@hookBefore
-                val apps = Utils.binderLocalScope {
-                    service.pms.getPackagesForUid(appInfo.uid)
-                } ?: return@hookBefore
-                for (app in apps) {
-                    if (service.isHookEnabled(app)) {
-                        if (sAppDataIsolationEnabled) param.result = true
-                        logI(TAG, "force mount data: ${appInfo.uid} $app")
-                        return@hookBefore
-                    }
+                // Runs for every process start, so only a lookup in the service's uid cache
+                if (service.isScopedUid(appInfo.uid)) {
+                    if (sAppDataIsolationEnabled) param.result = true
+                    logI(TAG, "force mount data: ${appInfo.uid} ${appInfo.packageName}")
                 }
             }.onFailure {
                 logE(TAG, "Fatal error occurred, disable hooks", it)
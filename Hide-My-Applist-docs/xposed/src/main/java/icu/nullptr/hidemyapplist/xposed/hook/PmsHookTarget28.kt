@@ -27,15 +27,13 @@ class PmsHookTarget28(private val service: HMAService) : IFrameworkHook {
             runCatching {
                 val callingUid = param.args[1] as Int
                 if (callingUid == Constants.UID_SYSTEM) return@hookBefore
-                val callingApps = Utils.binderLocalScope {
-                    service.pms.getPackagesForUid(callingUid)
-                } ?: return@hookBefore
+                val callingApps = service.getPackagesForUid(callingUid) ?: return@hookBefore
                 val packageSettings = param.args[0] ?: return@hookBefore
                 val targetApp = Utils.getPackageNameFromPackageSettings(packageSettings)
                 for (caller in callingApps) {
                     if (service.shouldHide(caller, targetApp)) {
                         param.result = true
-                        service.filterCount++
+                        service.recordFilter("filterAppAccessLPr", caller)
                         val last = lastFilteredApp.getAndSet(caller)
                         if (last != caller) logI(TAG, "@filterAppAccessLPr query from $caller")
                         logD(TAG, "@filterAppAccessLPr caller: $callingUid $caller, target: $targetApp")
@@ -53,9 +51,7 @@ class PmsHookTarget28(private val service: HMAService) : IFrameworkHook {
             runCatching {
                 val callingUid = param.args[3] as Int
                 if (callingUid == Constants.UID_SYSTEM) return@hookAfter
-                val callingApps = Utils.binderLocalScope {
-                    service.pms.getPackagesForUid(callingUid)
-                } ?: return@hookAfter
+                val callingApps = service.getPackagesForUid(callingUid) ?: return@hookAfter
                 val list = param.result as MutableCollection<ResolveInfo>
                 val listToRemove = mutableSetOf<ResolveInfo>()
                 for (resolveInfo in list) {
@@ -64,6 +60,7 @@ class PmsHookTarget28(private val service: HMAService) : IFrameworkHook {
                     }
                     for (caller in callingApps) {
                         if (service.shouldHide(caller, targetApp)) {
+                            service.recordFilter("applyPostResolutionFilter", caller)
                             val last = lastFilteredApp.getAndSet(caller)
                             if (last != caller) logI(TAG, "@applyPostResolutionFilter query from $caller")
                             logD(TAG, "@applyPostResolutionFilter caller: $callingUid $caller, target: $targetApp")
@@ -27,14 +27,12 @@ class PmsHookTarget30(private val service: HMAService) : IFrameworkHook {
             runCatching {
                 val callingUid = param.args[0] as Int
                 if (callingUid == Constants.UID_SYSTEM) return@hookBefore
-                val callingApps = Utils.binderLocalScope {
-                    service.pms.getPackagesForUid(callingUid)
-                } ?: return@hookBefore
+                val callingApps = service.getPackagesForUid(callingUid) ?: return@hookBefore
                 val targetApp = Utils.getPackageNameFromPackageSettings(param.args[2])
                 for (caller in callingApps) {
                     if (service.shouldHide(caller, targetApp)) {
                         param.result = true
-                        service.filterCount++
+                        service.recordFilter("shouldFilterApplication", caller)
                         val last = lastFilteredApp.getAndSet(caller)
                         if (last != caller) logI(TAG, "@shouldFilterApplication: query from $caller")
                         logD(TAG, "@shouldFilterApplication caller: $callingUid $caller, target: $targetApp")
@@ -38,14 +38,14 @@ class PmsHookTarget34(private val service: HMAService) : IFrameworkHook {
                 val snapshot = param.args[0]
                 val callingUid = param.args[1] as Int
                 if (callingUid == Constants.UID_SYSTEM) return@hookBefore
-                val callingApps = Utils.binderLocalScope {
+                val callingApps = service.packages.packagesForUid(callingUid) ?: Utils.binderLocalScope {
                     getPackagesForUidMethod.invoke(snapshot, callingUid) as Array<String>?
                 } ?: return@hookBefore
                 val targetApp = Utils.getPackageNameFromPackageSettings(param.args[3]) // PackageSettings <- PackageStateInternal
                 for (caller in callingApps) {
                     if (service.shouldHide(caller, targetApp)) {
                         param.result = true
-                        service.filterCount++
+                        service.recordFilter("shouldFilterApplication", caller)
                         val last = lastFilteredApp.getAndSet(caller)
                         if (last != caller) logI(TAG, "@shouldFilterApplication: query from $caller")
                         logD(TAG, "@shouldFilterApplication caller: $callingUid $caller, target: $targetApp")
@@ -65,14 +65,12 @@ class PmsHookTarget34(private val service: HMAService) : IFrameworkHook {
             runCatching {
                 val callingUid = Binder.getCallingUid()
                 if (callingUid == Constants.UID_SYSTEM) return@hookBefore
-                val callingApps = Utils.binderLocalScope {
-                    service.pms.getPackagesForUid(callingUid)
-                } ?: return@hookBefore
+                val callingApps = service.getPackagesForUid(callingUid) ?: return@hookBefore
                 val targetApp = param.args[0].toString()
                 for (caller in callingApps) {
                     if (service.shouldHide(caller, targetApp)) {
                         param.result = null
-                        service.filterCount++
+                        service.recordFilter("getArchivedPackageInternal", caller)
                         val last = lastFilteredApp.getAndSet(caller)
                         if (last != caller) logI(TAG, "@getArchivedPackageInternal: query from $caller")
                         logD(TAG, "@getArchivedPackageInternal caller: $callingUid $caller, target: $targetApp")
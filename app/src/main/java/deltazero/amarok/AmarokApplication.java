@@ -20,7 +20,6 @@ public class AmarokApplication extends Application {
         super.onCreate();
 
         // WARNING: Do not change the order of those initializations.
-        XHidePrefBridge.migratePrefsIfNeeded(this);
         PrefMgr.init(this);
         Hider.init();
         QSTileService.init(getApplicationContext());
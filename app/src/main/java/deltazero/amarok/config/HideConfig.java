@@ -11,12 +11,15 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Configuration for app hiding with blacklist and whitelist modes.
  * 
  * - Blacklist: Apps that are hidden from ALL other apps (e.g., Magisk, LSPosed)
  * - Whitelist: Apps that are sandboxed and can only see linked apps
+ * - Sandboxed apps still see system apps unless "exclude system apps" is turned off for them
+ * - Templates: named sets of visible apps that many sandboxed apps can share
  */
 public class HideConfig {
 
@@ -24,6 +27,9 @@ public class HideConfig {
     private static final String KEY_BLACKLIST = "blacklist_apps";
     private static final String KEY_WHITELIST = "whitelist_apps";
     private static final String KEY_LINKED = "linked_apps";
+    private static final String KEY_INCLUDE_SYSTEM = "include_system_apps";
+    private static final String KEY_TEMPLATES = "templates";
+    private static final String KEY_APPLIED_TEMPLATES = "applied_templates";
 
     private static HideConfig instance;
     private final SharedPreferences prefs;
@@ -38,6 +44,15 @@ public class HideConfig {
     // Linked apps: For each whitelisted app, which apps it CAN see
     private Map<String, Set<String>> linkedApps;
 
+    // Sandboxed apps that do NOT exclude system apps, i.e. system apps are hidden from them too
+    private Set<String> includeSystemApps;
+
+    // Templates: template name -> apps visible through it
+    private Map<String, Set<String>> templates;
+
+    // Applied templates: for each whitelisted app, the templates it uses
+    private Map<String, Set<String>> appliedTemplates;
+
     private HideConfig(Context context) {
         prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
         load();
@@ -59,13 +74,18 @@ public class HideConfig {
         whitelistApps = prefs.getStringSet(KEY_WHITELIST, new HashSet<>());
         whitelistApps = new HashSet<>(whitelistApps);
 
-        // Load linked apps (stored as JSON)
-        String linkedJson = prefs.getString(KEY_LINKED, "{}");
+        // Load linked apps and templates (stored as JSON)
         Type type = new TypeToken<Map<String, Set<String>>>() {}.getType();
-        linkedApps = gson.fromJson(linkedJson, type);
-        if (linkedApps == null) {
-            linkedApps = new HashMap<>();
-        }
+        linkedApps = loadMap(KEY_LINKED, type);
+        templates = loadMap(KEY_TEMPLATES, type);
+        appliedTemplates = loadMap(KEY_APPLIED_TEMPLATES, type);
+
+        includeSystemApps = new HashSet<>(prefs.getStringSet(KEY_INCLUDE_SYSTEM, new HashSet<>()));
+    }
+
+    private Map<String, Set<String>> loadMap(String key, Type type) {
+        Map<String, Set<String>> map = gson.fromJson(prefs.getString(key, "{}"), type);
+        return map != null ? map : new HashMap<>();
     }
 
     public void save() {
@@ -73,6 +93,9 @@ public class HideConfig {
                 .putStringSet(KEY_BLACKLIST, blacklistApps)
                 .putStringSet(KEY_WHITELIST, whitelistApps)
                 .putString(KEY_LINKED, gson.toJson(linkedApps))
+                .putStringSet(KEY_INCLUDE_SYSTEM, includeSystemApps)
+                .putString(KEY_TEMPLATES, gson.toJson(templates))
+                .putString(KEY_APPLIED_TEMPLATES, gson.toJson(appliedTemplates))
                 .apply();
     }
 
@@ -113,6 +136,8 @@ public class HideConfig {
     public void removeFromWhitelist(String packageName) {
         whitelistApps.remove(packageName);
         linkedApps.remove(packageName);
+        includeSystemApps.remove(packageName);
+        appliedTemplates.remove(packageName);
         save();
     }
 
@@ -146,6 +171,107 @@ public class HideConfig {
         }
     }
 
+    // ==================== Template Methods ====================
+
+    public Set<String> getTemplateNames() {
+        return new TreeSet<>(templates.keySet());
+    }
+
+    public Set<String> getTemplate(String name) {
+        Set<String> apps = templates.get(name);
+        return apps != null ? new HashSet<>(apps) : new HashSet<>();
+    }
+
+    /**
+     * Create or replace a template.
+     */
+    public void setTemplate(String name, Set<String> apps) {
+        templates.put(name, new HashSet<>(apps));
+        save();
+    }
+
+    /**
+     * Delete a template and unapply it everywhere.
+     */
+    public void removeTemplate(String name) {
+        templates.remove(name);
+        for (Set<String> applied : appliedTemplates.values()) {
+            applied.remove(name);
+        }
+        save();
+    }
+
+    /**
+     * Rename a template and keep it applied wherever it was.
+     * Returns false if the old name does not exist or the new one is taken.
+     */
+    public boolean renameTemplate(String oldName, String newName) {
+        if (!templates.containsKey(oldName) || templates.containsKey(newName)) return false;
+        templates.put(newName, templates.remove(oldName));
+        for (Set<String> applied : appliedTemplates.values()) {
+            if (applied.remove(oldName)) applied.add(newName);
+        }
+        save();
+        return true;
+    }
+
+    public Set<String> getAppliedTemplates(String whitelistedApp) {
+        Set<String> applied = appliedTemplates.get(whitelistedApp);
+        return applied != null ? new HashSet<>(applied) : new HashSet<>();
+    }
+
+    public void setAppliedTemplates(String whitelistedApp, Set<String> names) {
+        appliedTemplates.put(whitelistedApp, new HashSet<>(names));
+        save();
+    }
+
+    /**
+     * Get all templates, for export.
+     */
+    public Map<String, Set<String>> getTemplates() {
+        Map<String, Set<String>> copy = new HashMap<>();
+        templates.forEach((name, apps) -> copy.put(name, new HashSet<>(apps)));
+        return copy;
+    }
+
+    /**
+     * Get the apps a sandboxed app can see through its links and templates.
+     */
+    public Set<String> getVisibleApps(String whitelistedApp) {
+        Set<String> visible = getLinkedApps(whitelistedApp);
+        for (String name : getAppliedTemplates(whitelistedApp)) {
+            visible.addAll(getTemplate(name));
+        }
+        return visible;
+    }
+
+    // ==================== System Apps Methods ====================
+
+    /**
+     * Whether a sandboxed app may always see system apps. On by default, as in HMA.
+     */
+    public boolean isExcludeSystemApps(String whitelistedApp) {
+        return !includeSystemApps.contains(whitelistedApp);
+    }
+
+    public void setExcludeSystemApps(String whitelistedApp, boolean exclude) {
+        if (exclude) {
+            includeSystemApps.remove(whitelistedApp);
+        } else {
+            includeSystemApps.add(whitelistedApp);
+        }
+        save();
+    }
+
+    /**
+     * Get the sandboxed apps that may always see system apps.
+     */
+    public Set<String> getExcludeSystemApps() {
+        Set<String> apps = new HashSet<>(whitelistApps);
+        apps.removeAll(includeSystemApps);
+        return apps;
+    }
+
     // ==================== Export for Xposed ====================
 
     /**
@@ -157,6 +283,9 @@ public class HideConfig {
         config.put("blacklist", blacklistApps);
         config.put("whitelist", whitelistApps);
         config.put("linked", linkedApps);
+        config.put("excludeSystem", getExcludeSystemApps());
+        config.put("templates", templates);
+        config.put("appliedTemplates", appliedTemplates);
         return gson.toJson(config);
     }
 
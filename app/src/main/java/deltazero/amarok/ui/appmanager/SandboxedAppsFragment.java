@@ -7,9 +7,11 @@ import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -80,12 +82,13 @@ public class SandboxedAppsFragment extends Fragment {
         for (String packageName : whitelist) {
             try {
                 ApplicationInfo appInfo = pm.getApplicationInfo(packageName, 0);
-                Set<String> linked = config.getLinkedApps(packageName);
+                Set<String> linked = config.getVisibleApps(packageName);
                 apps.add(new SandboxedAppInfo(
                         packageName,
                         pm.getApplicationLabel(appInfo).toString(),
                         pm.getApplicationIcon(appInfo),
-                        linked.size()
+                        linked.size(),
+                        config.isExcludeSystemApps(packageName)
                 ));
             } catch (PackageManager.NameNotFoundException e) {
                 config.removeFromWhitelist(packageName);
@@ -123,6 +126,101 @@ public class SandboxedAppsFragment extends Fragment {
         });
     }
 
+    private void showOptions(SandboxedAppInfo app) {
+        new MaterialAlertDialogBuilder(requireContext())
+                .setTitle(app.appName)
+                .setMultiChoiceItems(new CharSequence[]{getString(R.string.exclude_system_apps)},
+                        new boolean[]{app.excludeSystem}, (d, which, checked) -> {
+                            config.setExcludeSystemApps(app.packageName, checked);
+                            XHidePrefBridge.syncConfig(requireContext());
+                        })
+                .setPositiveButton(R.string.confirm, null)
+                .setNeutralButton(R.string.templates, (d, w) -> showTemplates(app.packageName))
+                .setOnDismissListener(d -> refreshList())
+                .show();
+    }
+
+    private void showTemplates(String sandboxedApp) {
+        String[] names = config.getTemplateNames().toArray(new String[0]);
+        Set<String> applied = config.getAppliedTemplates(sandboxedApp);
+        boolean[] checked = new boolean[names.length];
+        for (int i = 0; i < names.length; i++) {
+            checked[i] = applied.contains(names[i]);
+        }
+        new MaterialAlertDialogBuilder(requireContext())
+                .setTitle(R.string.templates)
+                .setMultiChoiceItems(names, checked, (d, which, isChecked) -> checked[which] = isChecked)
+                .setPositiveButton(R.string.confirm, (d, w) -> {
+                    Set<String> selected = new HashSet<>();
+                    for (int i = 0; i < names.length; i++) {
+                        if (checked[i]) selected.add(names[i]);
+                    }
+                    config.setAppliedTemplates(sandboxedApp, selected);
+                    XHidePrefBridge.syncConfig(requireContext());
+                    refreshList();
+                })
+                .setNeutralButton(R.string.edit_template, (d, w) -> showTemplateEditor())
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+
+    private void showTemplateEditor() {
+        MaterialAlertDialogBuilder builder = new MaterialAlertDialogBuilder(requireContext())
+                .setTitle(R.string.edit_template)
+                .setMessage(R.string.edit_template_description);
+        View input = LayoutInflater.from(builder.getContext()).inflate(R.layout.dialog_path_input, null);
+        EditText etName = input.findViewById(R.id.dialog_path_input_et_input);
+        etName.setHint(R.string.template_name);
+        builder.setView(input)
+                .setPositiveButton(R.string.confirm, (d, w) -> {
+                    String name = etName.getText().toString().trim();
+                    if (name.isEmpty()) return;
+                    AppPickerDialog.show(requireContext(), config.getTemplate(name), selectedApps -> {
+                        // Picking no apps deletes the template
+                        if (selectedApps.isEmpty()) {
+                            config.removeTemplate(name);
+                        } else {
+                            config.setTemplate(name, selectedApps);
+                        }
+                        XHidePrefBridge.syncConfig(requireContext());
+                        refreshList();
+                    });
+                })
+                .setNeutralButton(R.string.rename_template, (d, w) -> {
+                    String name = etName.getText().toString().trim();
+                    if (name.isEmpty()) return;
+                    if (!config.getTemplateNames().contains(name)) {
+                        Toast.makeText(requireContext(), getString(R.string.template_not_found, name), Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    showTemplateRename(name);
+                })
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+
+    private void showTemplateRename(String oldName) {
+        MaterialAlertDialogBuilder builder = new MaterialAlertDialogBuilder(requireContext())
+                .setTitle(R.string.rename_template);
+        View input = LayoutInflater.from(builder.getContext()).inflate(R.layout.dialog_path_input, null);
+        EditText etName = input.findViewById(R.id.dialog_path_input_et_input);
+        etName.setHint(R.string.template_name);
+        etName.setText(oldName);
+        builder.setView(input)
+                .setPositiveButton(R.string.confirm, (d, w) -> {
+                    String newName = etName.getText().toString().trim();
+                    if (newName.isEmpty() || newName.equals(oldName)) return;
+                    if (!config.renameTemplate(oldName, newName)) {
+                        Toast.makeText(requireContext(), getString(R.string.template_name_taken, newName), Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    XHidePrefBridge.syncConfig(requireContext());
+                    refreshList();
+                })
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+
     private void removeApp(String packageName) {
         config.removeFromWhitelist(packageName);
         XHidePrefBridge.syncConfig(requireContext());
@@ -134,12 +232,14 @@ public class SandboxedAppsFragment extends Fragment {
         String appName;
         Drawable icon;
         int linkedCount;
+        boolean excludeSystem;
 
-        SandboxedAppInfo(String packageName, String appName, Drawable icon, int linkedCount) {
+        SandboxedAppInfo(String packageName, String appName, Drawable icon, int linkedCount, boolean excludeSystem) {
             this.packageName = packageName;
             this.appName = appName;
             this.icon = icon;
             this.linkedCount = linkedCount;
+            this.excludeSystem = excludeSystem;
         }
     }
 
@@ -166,10 +266,16 @@ public class SandboxedAppsFragment extends Fragment {
             holder.name.setText(app.appName);
             holder.packageName.setText(app.packageName);
             holder.linkedInfo.setVisibility(View.VISIBLE);
-            holder.linkedInfo.setText(getString(R.string.linked_apps_count, app.linkedCount));
+            holder.linkedInfo.setText(getString(app.excludeSystem
+                    ? R.string.linked_apps_count_with_system
+                    : R.string.linked_apps_count, app.linkedCount));
             
-            // Tap item to edit links
+            // Tap item to edit links, long press for options
             holder.itemView.setOnClickListener(v -> showLinkEditor(app.packageName));
+            holder.itemView.setOnLongClickListener(v -> {
+                showOptions(app);
+                return true;
+            });
             
             holder.actionButton.setImageResource(R.drawable.ic_close);
             holder.actionButton.setOnClickListener(v -> {
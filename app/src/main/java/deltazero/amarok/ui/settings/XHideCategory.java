@@ -1,22 +1,35 @@
 package deltazero.amarok.ui.settings;
 
 import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 
 import androidx.annotation.NonNull;
 import androidx.fragment.app.FragmentActivity;
 import androidx.preference.Preference;
 import androidx.preference.PreferenceScreen;
 
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import deltazero.amarok.R;
 import deltazero.amarok.config.HideConfig;
 import deltazero.amarok.ui.AppManagerActivity;
 import deltazero.amarok.utils.XHidePrefBridge;
+import deltazero.amarok.xposed.utils.HookMetrics;
 
 /**
  * XHide settings category.
  * Now uses always-on protection model - no toggle needed.
  */
 public class XHideCategory extends BaseCategory {
+    // Hook metrics come from a binder call into system_server, so never fetch them on the UI thread
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
     public XHideCategory(@NonNull FragmentActivity activity, @NonNull PreferenceScreen screen) {
         super(activity, screen);
         setTitle(R.string.x_hide);
@@ -44,6 +57,17 @@ public class XHideCategory extends BaseCategory {
         protectionStatus.setIcon(R.drawable.ic_lock);
         addPreference(protectionStatus);
 
+        // Hook statistics, tap to refresh
+        var hookMetrics = new Preference(activity);
+        hookMetrics.setTitle(R.string.hook_metrics);
+        hookMetrics.setIcon(R.drawable.ic_null);
+        loadHookMetrics(hookMetrics);
+        hookMetrics.setOnPreferenceClickListener(p -> {
+            loadHookMetrics(p);
+            return true;
+        });
+        addPreference(hookMetrics);
+
         // Open App Manager
         var openAppManager = new Preference(activity);
         openAppManager.setTitle(R.string.app_manager_title);
@@ -55,5 +79,36 @@ public class XHideCategory extends BaseCategory {
         });
         addPreference(openAppManager);
     }
-}
 
+    private void loadHookMetrics(Preference preference) {
+        preference.setSummary(R.string.hook_metrics_loading);
+        executor.execute(() -> {
+            Bundle metrics = XHidePrefBridge.getHookMetrics();
+            mainHandler.post(() -> preference.setSummary(getHookMetricsSummary(metrics)));
+        });
+    }
+
+    private String getHookMetricsSummary(Bundle metrics) {
+        if (metrics == null) return activity.getString(R.string.hook_metrics_unavailable);
+        if (metrics.isEmpty()) return activity.getString(R.string.hook_metrics_empty);
+
+        var lines = new ArrayList<String>();
+        for (String hook : metrics.keySet()) {
+            Bundle m = metrics.getBundle(hook);
+            if (m == null) continue;
+            long calls = m.getLong(HookMetrics.KEY_CALLS);
+            double filterRatio = calls == 0 ? 0 : m.getLong(HookMetrics.KEY_FILTERED) * 100.0 / calls;
+            lines.add(activity.getString(R.string.hook_metrics_summary, hook,
+                    m.getDouble(HookMetrics.KEY_CALLS_PER_SEC), filterRatio,
+                    formatNanos(m.getLong(HookMetrics.KEY_P50_NS)),
+                    formatNanos(m.getLong(HookMetrics.KEY_P99_NS))));
+        }
+        return String.join("\n", lines);
+    }
+
+    private static String formatNanos(long ns) {
+        if (ns < 1000) return ns + " ns";
+        if (ns < 1_000_000) return String.format(Locale.ROOT, "%.1f \u00b5s", ns / 1e3);
+        return String.format(Locale.ROOT, "%.1f ms", ns / 1e6);
+    }
+}
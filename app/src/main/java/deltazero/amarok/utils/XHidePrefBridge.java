@@ -2,33 +2,37 @@ package deltazero.amarok.utils;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 
-import deltazero.amarok.BuildConfig;
 import deltazero.amarok.PrefMgr;
 import deltazero.amarok.config.HideConfig;
+import deltazero.amarok.xposed.IXHideService;
+import deltazero.amarok.xposed.utils.HideRules;
 import deltazero.amarok.xposed.utils.XPref;
 
 /**
  * Bridge between Amarok app and Xposed module.
- * Syncs HideConfig (blacklist, whitelist, linked apps) to XSharedPreferences
- * for the Xposed module to read.
+ * Syncs HideConfig (blacklist, whitelist, linked apps) as a binary {@link HideRules} image.
+ * Each change is pushed to the XHide service in system_server, and also written into the
+ * XSharedPreferences directory so the module can map it at the next boot.
  * 
  * Always-on protection: No toggle needed. If module is active, protection is active.
  */
 @SuppressLint("SdCardPath")
 public class XHidePrefBridge {
     private static final String TAG = "XHidePrefBridge";
-    private static final String LOCAL_PREF_DIR = String.format("/data/data/%s/shared_prefs",
-            BuildConfig.APPLICATION_ID);
-    private static final String HIDE_CONFIG_FILENAME = "deltazero.amarok.hide_config.xml";
-
-    private static SharedPreferences.Editor xprefEditor;
 
     public static boolean isModuleActive = false; /* Hooked by module */
     public static int xposedVersion = 0; /* Hooked by module */
@@ -36,25 +40,9 @@ public class XHidePrefBridge {
 
     public static boolean isAvailable = false;
 
-    /**
-     * Migrate preferences when Xposed module is first enabled.
-     */
-    public static void migratePrefsIfNeeded(Context context) {
-        var localPrefFile = new File(LOCAL_PREF_DIR, HIDE_CONFIG_FILENAME);
-        var xPrefFile = new File(xPrefDir, HIDE_CONFIG_FILENAME);
-
-        if (!isModuleActive || xPrefFile.exists() || !localPrefFile.exists())
-            return;
-
-        Log.w(TAG, String.format("Migrating preferences to XPref directory: %s -> %s",
-                LOCAL_PREF_DIR, xPrefDir));
-        try {
-            Files.copy(localPrefFile.toPath(), xPrefFile.toPath());
-            Log.i(TAG, "Preferences migrated successfully");
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to migrate preferences", e);
-        }
-    }
+    private static volatile IXHideService service;
+    private static byte[] lastImage; /* Guarded by XHidePrefBridge.class */
+    private static long lastGeneration = 0; /* Guarded by XHidePrefBridge.class */
 
     @SuppressLint("WorldReadableFiles")
     public static void init(Context context) {
@@ -65,52 +53,172 @@ public class XHidePrefBridge {
 
         Log.i(TAG, "Xposed module active, version = " + xposedVersion);
 
-        SharedPreferences xPref;
         try {
-            // Use same pref path as XPref on module side
-            xPref = context.getSharedPreferences(XPref.XPREF_PATH, Context.MODE_WORLD_READABLE);
+            // Only frameworks with XSharedPreferences support accept MODE_WORLD_READABLE;
+            // they also set up the shared directory the config image is written to
+            context.getSharedPreferences(XPref.XPREF_PATH, Context.MODE_WORLD_READABLE);
         } catch (SecurityException ignored) {
-            Log.w(TAG, "Unsupported Xposed framework. XHide unavailable.");
+            // The XHide service still receives the config once linked, but it is lost on reboot
+            Log.w(TAG, "Unsupported Xposed framework. XHide config will not persist.");
             return;
         }
 
-        xprefEditor = xPref.edit();
+        isAvailable = true;
 
-        // Sync current config to XPref
+        // Sync current config to XPref and the service, if already linked
         syncConfig(context);
 
         Log.i(TAG, "XHidePrefBridge initialized. Always-on protection active.");
-        isAvailable = true;
     }
 
     /**
-     * Sync HideConfig to XSharedPreferences.
+     * Called by {@link XHideServiceProvider} when system_server hands over the service binder.
+     * Pushes the current config unless the service already holds it.
+     */
+    public static void linkService(Context context, IBinder binder) {
+        var remote = IXHideService.Stub.asInterface(binder);
+        long remoteGeneration;
+        try {
+            binder.linkToDeath(() -> {
+                Log.w(TAG, "XHide service died");
+                service = null;
+            }, 0);
+            remoteGeneration = remote.getConfigGeneration();
+            Log.i(TAG, "XHide service linked, version = " + remote.getServiceVersion());
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to link XHide service", e);
+            return;
+        }
+        service = remote;
+
+        synchronized (XHidePrefBridge.class) {
+            if (lastImage == null) {
+                syncConfig(context);
+            } else if (remoteGeneration != lastGeneration) {
+                pushConfig(lastImage, lastGeneration);
+            }
+        }
+    }
+
+    /**
+     * Sync HideConfig to the module.
      * Call this whenever blacklist, whitelist, or linked apps change.
+     * <p>
+     * The image is pushed to the XHide service if it is linked. It is also written to a temp
+     * file and renamed over the old one, so the module never maps a partially written file.
      */
-    public static void syncConfig(Context context) {
-        if (xprefEditor == null) {
-            Log.w(TAG, "XPref not initialized, cannot sync");
+    public static synchronized void syncConfig(Context context) {
+        if (!isAvailable && service == null) {
+            Log.w(TAG, "XHide not available, cannot sync");
             return;
         }
 
         HideConfig config = HideConfig.getInstance(context);
+        Set<String> whitelist = config.getWhitelistApps();
+        Map<String, Set<String>> linked = new HashMap<>();
+        Map<String, Set<String>> applied = new HashMap<>();
+        for (String app : whitelist) {
+            linked.put(app, config.getLinkedApps(app));
+            applied.put(app, config.getAppliedTemplates(app));
+        }
 
+        Map<String, Set<String>> templates = config.getTemplates();
         Log.d(TAG, "Syncing config: blacklist=" + config.getBlacklistApps().size() +
-                ", whitelist=" + config.getWhitelistApps().size());
+                ", whitelist=" + whitelist.size() + ", templates=" + templates.size());
+
+        var configFile = new File(xPrefDir, XPref.CONFIG_FILENAME);
+        // Generations must grow even if two syncs happen within the same millisecond
+        long generation = Math.max(System.currentTimeMillis(),
+                Math.max(lastGeneration, HideRules.readGeneration(configFile)) + 1);
+        byte[] image = HideRules.encode(config.getBlacklistApps(), whitelist, linked,
+                config.getExcludeSystemApps(), templates, applied, generation);
+        lastImage = image;
+        lastGeneration = generation;
+
+        pushConfig(image, generation);
+        if (isAvailable) writeConfig(configFile, image, generation);
+    }
+
+    private static void pushConfig(byte[] image, long generation) {
+        var remote = service;
+        if (remote == null) return;
+        try {
+            remote.syncConfig(image);
+            Log.d(TAG, "Config pushed to XHide service, generation = " + generation);
+        } catch (RemoteException | RuntimeException e) {
+            Log.e(TAG, "Failed to push config", e);
+        }
+    }
 
-        xprefEditor.putStringSet(XPref.KEY_BLACKLIST, config.getBlacklistApps());
-        xprefEditor.putStringSet(XPref.KEY_WHITELIST, config.getWhitelistApps());
-        xprefEditor.putString(XPref.KEY_LINKED, config.exportLinkedAppsJson());
-        xprefEditor.commit();
+    private static void writeConfig(File configFile, byte[] image, long generation) {
+        var tempFile = new File(xPrefDir, XPref.CONFIG_FILENAME + ".tmp");
+        try (var out = new FileOutputStream(tempFile)) {
+            out.write(image);
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write config", e);
+            return;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        tempFile.setReadable(true, false);
+        if (!tempFile.renameTo(configFile)) {
+            Log.e(TAG, "Failed to replace config file");
+            return;
+        }
 
-        Log.d(TAG, "Config synced to XPref");
+        Log.d(TAG, "Config synced to XPref, generation = " + generation);
+    }
+
+    /**
+     * Diagnostics reported by the XHide service (see {@code XHideService.DIAG_*}),
+     * or null if the service is not linked.
+     */
+    @Nullable
+    public static Bundle getDiagnostics() {
+        var remote = service;
+        if (remote == null) return null;
+        try {
+            return remote.getDiagnostics();
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to get diagnostics", e);
+            return null;
+        }
+    }
+
+    /**
+     * Latest hook metrics snapshot from the XHide service: one bundle per hooked method
+     * (see {@code HookMetrics.KEY_*}), or null if the service is not linked.
+     */
+    @Nullable
+    public static Bundle getHookMetrics() {
+        var remote = service;
+        if (remote == null) return null;
+        try {
+            return remote.getHookMetrics();
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to get hook metrics", e);
+            return null;
+        }
+    }
+
+    /**
+     * Set the minimum {@link Log} priority the module logs in system_server.
+     */
+    public static void setModuleLogLevel(int level) {
+        var remote = service;
+        if (remote == null) return;
+        try {
+            remote.setLogLevel(level);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to set module log level", e);
+        }
     }
 
     /**
      * Check if module is active and available.
      */
     public static boolean isModuleAvailable() {
-        return isModuleActive && isAvailable;
+        return isModuleActive && (isAvailable || service != null);
     }
 }
 
@@ -0,0 +1,68 @@
+package deltazero.amarok.utils;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import deltazero.amarok.xposed.UserService;
+
+/**
+ * Receives the XHide service binder from system_server.
+ * The module calls this provider whenever Amarok's process becomes active.
+ */
+public class XHideServiceProvider extends ContentProvider {
+    private static final String TAG = "XHideServiceProvider";
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        if (!"android".equals(getCallingPackage())) return null;
+        IBinder binder = extras == null ? null : extras.getBinder(UserService.EXTRA_BINDER);
+        if (binder == null) return null;
+        Log.i(TAG, "Received XHide service binder");
+        XHidePrefBridge.linkService(getContext(), binder);
+        return new Bundle();
+    }
+
+    @Nullable
+    @Override
+    public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
+                        @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public String getType(@NonNull Uri uri) {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String selection,
+                      @Nullable String[] selectionArgs) {
+        return 0;
+    }
+}
@@ -1,9 +1,49 @@
 package deltazero.amarok.xposed
 
-import com.github.kyuubiran.ezxhelper.Log
+import android.util.Log
+import deltazero.amarok.BuildConfig
+import deltazero.amarok.xposed.utils.LogBuffer
 
-// Logging extension functions for consistent XHide logging
-fun logD(tag: String, msg: String) = Log.d("[$tag] $msg", null)
-fun logI(tag: String, msg: String) = Log.ix("[$tag] $msg", null)
-fun logW(tag: String, msg: String, e: Throwable? = null) = Log.wx("[$tag] $msg", e)
-fun logE(tag: String, msg: String, e: Throwable? = null) = Log.ex("[$tag] $msg", e)
+// Logging extension functions for consistent XHide logging.
+// Records below logLevel cost one volatile read; the rest go through LogBuffer.
+
+@Volatile
+var logLevel = if (BuildConfig.DEBUG) Log.DEBUG else Log.INFO
+
+fun logD(tag: String, msg: String) {
+    if (logLevel <= Log.DEBUG) LogBuffer.offer(Log.DEBUG, tag, msg, null)
+}
+
+fun logI(tag: String, msg: String) {
+    if (logLevel <= Log.INFO) LogBuffer.offer(Log.INFO, tag, msg, null)
+}
+
+fun logW(tag: String, msg: String, e: Throwable? = null) {
+    if (logLevel <= Log.WARN) LogBuffer.offer(Log.WARN, tag, msg, e)
+}
+
+fun logE(tag: String, msg: String, e: Throwable? = null) = LogBuffer.offer(Log.ERROR, tag, msg, e)
+
+// Lazy variants for hot paths: the message is only built if the level is enabled
+
+inline fun logD(tag: String, msg: () -> String) {
+    if (logLevel <= Log.DEBUG) LogBuffer.offer(Log.DEBUG, tag, msg(), null)
+}
+
+inline fun logI(tag: String, msg: () -> String) {
+    if (logLevel <= Log.INFO) LogBuffer.offer(Log.INFO, tag, msg(), null)
+}
+
+// Rate-limited variants for hooks: at most a few records per second per (tag, caller uid)
+
+inline fun logD(tag: String, callerUid: Int, msg: () -> String) {
+    if (logLevel <= Log.DEBUG && LogBuffer.RateLimiter.tryAcquire(tag, callerUid)) {
+        LogBuffer.offer(Log.DEBUG, tag, msg(), null)
+    }
+}
+
+inline fun logI(tag: String, callerUid: Int, msg: () -> String) {
+    if (logLevel <= Log.INFO && LogBuffer.RateLimiter.tryAcquire(tag, callerUid)) {
+        LogBuffer.offer(Log.INFO, tag, msg(), null)
+    }
+}
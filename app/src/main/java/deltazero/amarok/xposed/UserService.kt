@@ -0,0 +1,84 @@
+package deltazero.amarok.xposed
+
+import android.content.AttributionSource
+import android.content.pm.IPackageManager
+import android.os.Build
+import android.os.Bundle
+import android.os.ServiceManager
+import deltazero.amarok.BuildConfig
+import deltazero.amarok.xposed.utils.Utils
+import rikka.hidden.compat.ActivityManagerApis
+import rikka.hidden.compat.adapter.UidObserverAdapter
+
+private const val TAG = "UserService"
+
+/**
+ * Hands the [XHideService] binder to the app. Whenever the app's uid becomes active,
+ * the binder is passed to its ContentProvider, like HMA's UserService does.
+ */
+object UserService {
+
+    const val PROVIDER_AUTHORITY = "${BuildConfig.APPLICATION_ID}.XHideServiceProvider"
+    const val EXTRA_BINDER = "binder"
+
+    // ActivityManager.UID_OBSERVER_ACTIVE and PROCESS_STATE_UNKNOWN
+    private const val UID_OBSERVER_ACTIVE = 1 shl 3
+    private const val PROCESS_STATE_UNKNOWN = -1
+
+    private var appUid = 0
+    private lateinit var service: XHideService
+
+    private val uidObserver = object : UidObserverAdapter() {
+        override fun onUidActive(uid: Int) {
+            if (uid != appUid) return
+            try {
+                val provider = ActivityManagerApis.getContentProviderExternal(PROVIDER_AUTHORITY, 0, null, null)
+                if (provider == null) {
+                    logE(TAG, "Failed to get provider")
+                    return
+                }
+                val extras = Bundle()
+                extras.putBinder(EXTRA_BINDER, service)
+                val reply = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                    val attr = AttributionSource.Builder(1000).setPackageName("android").build()
+                    provider.call(attr, PROVIDER_AUTHORITY, "", null, extras)
+                } else if (Build.VERSION.SDK_INT == Build.VERSION_CODES.R) {
+                    provider.call("android", null, PROVIDER_AUTHORITY, "", null, extras)
+                } else if (Build.VERSION.SDK_INT == Build.VERSION_CODES.Q) {
+                    provider.call("android", PROVIDER_AUTHORITY, "", null, extras)
+                } else {
+                    provider.call("android", "", null, extras)
+                }
+                if (reply == null) {
+                    logE(TAG, "Failed to send binder to app")
+                    return
+                }
+                logI(TAG, "Send binder to app")
+            } catch (e: Throwable) {
+                logE(TAG, "onUidActive", e)
+            }
+        }
+    }
+
+    fun register(pms: IPackageManager) {
+        logI(TAG, "Initialize XHideService - Version ${XHideService.SERVICE_VERSION}")
+        appUid = Utils.getPackageUidCompat(pms, BuildConfig.APPLICATION_ID, 0, 0)
+        service = XHideService(appUid)
+        logD(TAG, "Client uid: $appUid")
+        logI(TAG, "Register observer")
+
+        waitSystemService("activity")
+        ActivityManagerApis.registerUidObserver(
+            uidObserver,
+            UID_OBSERVER_ACTIVE,
+            PROCESS_STATE_UNKNOWN,
+            null
+        )
+    }
+
+    private fun waitSystemService(name: String) {
+        while (ServiceManager.getService(name) == null) {
+            Thread.sleep(1000)
+        }
+    }
+}
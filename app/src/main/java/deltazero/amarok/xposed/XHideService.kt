@@ -0,0 +1,68 @@
+package deltazero.amarok.xposed
+
+import android.os.Binder
+import android.os.Bundle
+import deltazero.amarok.xposed.utils.HideRules
+import deltazero.amarok.xposed.utils.HookMetrics
+import deltazero.amarok.xposed.utils.LogBuffer
+import deltazero.amarok.xposed.utils.VerdictCache
+import deltazero.amarok.xposed.utils.XPref
+import java.nio.ByteBuffer
+
+private const val TAG = "XHideService"
+
+/**
+ * Binder service living in system_server. The app pushes each new [HideRules] image here,
+ * so the hooks read an in-memory snapshot instead of polling the config file.
+ */
+class XHideService(private val appUid: Int) : IXHideService.Stub() {
+
+    companion object {
+        const val SERVICE_VERSION = 1
+
+        // Keys of the getDiagnostics() bundle
+        const val DIAG_CONFIG_GENERATION = "config_generation"
+        const val DIAG_REBUILD_COUNT = "rebuild_count"
+        const val DIAG_LAST_REBUILD_NS = "last_rebuild_ns"
+        const val DIAG_VERDICT_HITS = "verdict_hits"
+        const val DIAG_VERDICT_MISSES = "verdict_misses"
+        const val DIAG_LOG_DROPPED = "log_dropped"
+        const val DIAG_LOG_SUPPRESSED = "log_suppressed"
+    }
+
+    override fun getServiceVersion() = SERVICE_VERSION
+
+    override fun syncConfig(image: ByteArray) {
+        val callingUid = Binder.getCallingUid()
+        if (callingUid != appUid) {
+            logW(TAG, "Rejected config from uid $callingUid")
+            throw SecurityException("Caller is not Amarok")
+        }
+        // Validates the whole image; an invalid one throws and keeps the current snapshot
+        val rules = HideRules.wrap(ByteBuffer.wrap(image))
+        if (XPref.publish(rules)) {
+            logI(TAG, "Config synced, generation = ${rules.generation}")
+        } else {
+            logD(TAG, "Ignored stale config, generation = ${rules.generation}")
+        }
+    }
+
+    override fun getConfigGeneration() = XPref.current().generation
+
+    override fun getDiagnostics() = Bundle().apply {
+        putLong(DIAG_CONFIG_GENERATION, XPref.current().generation)
+        putInt(DIAG_REBUILD_COUNT, XPref.rebuildCount)
+        putLong(DIAG_LAST_REBUILD_NS, XPref.lastRebuildDurationNs)
+        putLong(DIAG_VERDICT_HITS, VerdictCache.hits)
+        putLong(DIAG_VERDICT_MISSES, VerdictCache.misses)
+        putLong(DIAG_LOG_DROPPED, LogBuffer.dropped)
+        putLong(DIAG_LOG_SUPPRESSED, LogBuffer.suppressed)
+    }
+
+    override fun getHookMetrics() = HookMetrics.snapshot()
+
+    override fun setLogLevel(level: Int) {
+        if (Binder.getCallingUid() != appUid) throw SecurityException("Caller is not Amarok")
+        logLevel = level
+    }
+}
@@ -1,19 +1,30 @@
 package deltazero.amarok.xposed
 
+import android.content.pm.IPackageManager
+import android.content.pm.PackageManager
 import android.os.Build
 import com.github.kyuubiran.ezxhelper.EzXHelper
 import com.github.kyuubiran.ezxhelper.Log
+import com.github.kyuubiran.ezxhelper.utils.findMethod
+import com.github.kyuubiran.ezxhelper.utils.hookBefore
 import de.robv.android.xposed.IXposedHookLoadPackage
 import de.robv.android.xposed.IXposedHookZygoteInit
+import de.robv.android.xposed.XC_MethodHook
 import de.robv.android.xposed.XposedBridge
 import de.robv.android.xposed.XposedHelpers
 import de.robv.android.xposed.callbacks.XC_LoadPackage
 import deltazero.amarok.BuildConfig
+import deltazero.amarok.xposed.hooks.AppsFilterCacheHook
 import deltazero.amarok.xposed.hooks.IFrameworkHook
+import deltazero.amarok.xposed.hooks.PackageEventHook
+import deltazero.amarok.xposed.hooks.PmsHookTarget28
 import deltazero.amarok.xposed.hooks.PmsHookTarget30
 import deltazero.amarok.xposed.hooks.PmsHookTarget33
 import deltazero.amarok.xposed.hooks.PmsHookTarget34
+import deltazero.amarok.xposed.utils.SystemApps
+import deltazero.amarok.xposed.utils.Utils
 import deltazero.amarok.xposed.utils.XPref
+import kotlin.concurrent.thread
 
 private const val TAG = "Amarok-XHide"
 
@@ -29,6 +40,7 @@ class XposedEntry : IXposedHookLoadPackage, IXposedHookZygoteInit {
             BuildConfig.APPLICATION_ID -> loadSelfHooks(lpparam)
             "android" -> {
                 XPref.init()
+                startUserService()
                 loadSystemHooks()
             }
         }
@@ -40,6 +52,41 @@ class XposedEntry : IXposedHookLoadPackage, IXposedHookZygoteInit {
         EzXHelper.setToastTag(TAG)
     }
 
+    private fun startUserService() {
+        var serviceManagerHook: XC_MethodHook.Unhook? = null
+        serviceManagerHook = findMethod("android.os.ServiceManager") {
+            name == "addService"
+        }.hookBefore { param ->
+            if (param.args[0] == "package") {
+                serviceManagerHook?.unhook()
+                val pms = param.args[1] as IPackageManager
+                logD(TAG, "Got pms: $pms")
+                thread {
+                    runCatching {
+                        indexSystemApps(pms)
+                        UserService.register(pms)
+                        logI(TAG, "User service started")
+                    }.onFailure {
+                        logE(TAG, "User service crashed", it)
+                    }
+                }
+            }
+        }
+    }
+
+    private fun indexSystemApps(pms: IPackageManager) {
+        runCatching {
+            // Apps installed only for other users are indexed too
+            val apps = Utils.binderLocalScope {
+                Utils.getInstalledApplicationsCompat(pms, PackageManager.MATCH_UNINSTALLED_PACKAGES.toLong(), 0)
+            }
+            val count = SystemApps.refresh(apps)
+            logI(TAG, "Indexed $count system apps out of ${apps.size}")
+        }.onFailure {
+            logE(TAG, "Failed to index system apps", it)
+        }
+    }
+
     private fun loadSystemHooks() {
         logI(TAG, "Initializing HMA-style system hooks...")
         
@@ -51,22 +98,46 @@ class XposedEntry : IXposedHookLoadPackage, IXposedHookZygoteInit {
             }
             Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE -> {
                 logI(TAG, "Using PmsHookTarget34 for API 34+")
-                hooks.add(PmsHookTarget34())
+                val cacheHook = AppsFilterCacheHook()
+                if (cacheHook.isSupported) {
+                    hooks.add(PmsHookTarget34("shouldFilterApplicationInternal"))
+                    hooks.add(cacheHook)
+                } else {
+                    logW(TAG, "AppsFilter cache not found, filtering every call")
+                    hooks.add(PmsHookTarget34())
+                }
+                hooks.add(PackageEventHook("com.android.server.pm.AppsFilterImpl"))
             }
             Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU -> {
                 logI(TAG, "Using PmsHookTarget33 for API 33")
-                hooks.add(PmsHookTarget33())
+                val cacheHook = AppsFilterCacheHook()
+                if (cacheHook.isSupported) {
+                    hooks.add(PmsHookTarget33("shouldFilterApplicationInternal"))
+                    hooks.add(cacheHook)
+                } else {
+                    logW(TAG, "AppsFilter cache not found, filtering every call")
+                    hooks.add(PmsHookTarget33())
+                }
+                hooks.add(PackageEventHook("com.android.server.pm.AppsFilterImpl"))
             }
             Build.VERSION.SDK_INT >= Build.VERSION_CODES.R -> {
                 logI(TAG, "Using PmsHookTarget30 for API 30-32")
                 hooks.add(PmsHookTarget30())
+                hooks.add(PackageEventHook("com.android.server.pm.AppsFilter"))
             }
             else -> {
-                logW(TAG, "API ${Build.VERSION.SDK_INT} not supported for HMA-style hooks")
+                logI(TAG, "Using PmsHookTarget28 for API 26-29")
+                hooks.add(PmsHookTarget28())
+                hooks.add(PackageEventHook(
+                    "com.android.server.pm.Settings",
+                    "insertPackageSettingLPw",
+                    "removePackageLPw"
+                ))
             }
         }
 
         hooks.forEach { it.load() }
+        XPref.setOnConfigChangedListener { hooks.forEach { it.onConfigChanged() } }
         logI(TAG, "System hooks loaded: ${hooks.size}")
     }
 
@@ -0,0 +1,248 @@
+package deltazero.amarok.xposed.hooks
+
+import android.content.pm.IPackageManager
+import android.os.Build
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.ServiceManager
+import androidx.annotation.RequiresApi
+import com.github.kyuubiran.ezxhelper.EzXHelper
+import com.github.kyuubiran.ezxhelper.utils.findFieldOrNull
+import com.github.kyuubiran.ezxhelper.utils.findMethodOrNull
+import com.github.kyuubiran.ezxhelper.utils.hookAllConstructorAfter
+import de.robv.android.xposed.XC_MethodHook
+import de.robv.android.xposed.XposedHelpers
+import deltazero.amarok.xposed.logD
+import deltazero.amarok.xposed.logE
+import deltazero.amarok.xposed.logI
+import deltazero.amarok.xposed.logW
+import deltazero.amarok.xposed.utils.HideRules
+import deltazero.amarok.xposed.utils.SystemApps
+import deltazero.amarok.xposed.utils.Utils
+import deltazero.amarok.xposed.utils.XPref
+import java.lang.reflect.Field
+import java.lang.reflect.Method
+
+private const val TAG = "AppsFilterCacheHook"
+private const val APPS_FILTER_CLASS = "com.android.server.pm.AppsFilterImpl"
+
+// Overloads of updateEntireShouldFilterCacheAsync after the PackageManagerInternal argument,
+// L for a long delay and I for an int reason: 14+ first, then 13
+private val REBUILD_SIGNATURES = listOf("LI", "I", "L", "")
+
+/**
+ * Keeps Android 13+'s AppsFilterImpl.mShouldFilterCache in line with the hide config.
+ *
+ * With this hook the PMS target only hooks shouldFilterApplicationInternal, which AppsFilter
+ * calls when it (re)builds the cache or misses it. Cached pairs are answered by the framework
+ * without entering Amarok code. On a config change the newly hidden (caller uid, target uid)
+ * cells are written into the cache directly; if cells may have to be un-hidden, the framework
+ * is asked to rebuild the cache in the background, which goes through the hooked method.
+ * If that is not possible, the cells only the previous rules hid are cleared instead.
+ *
+ * [isSupported] is false if the cache structure is not found; callers then keep hooking
+ * shouldFilterApplication on every call.
+ */
+@RequiresApi(Build.VERSION_CODES.TIRAMISU)
+class AppsFilterCacheHook : IFrameworkHook {
+
+    private val appsFilterClass: Class<*>? =
+        XposedHelpers.findClassIfExists(APPS_FILTER_CLASS, EzXHelper.classLoader)
+
+    private val cacheField: Field? = appsFilterClass?.let { clazz ->
+        findFieldOrNull(clazz, findSuper = true) { name == "mShouldFilterCache" }
+    }?.apply { isAccessible = true }
+
+    private val cacheLockField: Field? = appsFilterClass?.let { clazz ->
+        findFieldOrNull(clazz, findSuper = true) { name == "mCacheLock" }
+    }?.apply { isAccessible = true }
+
+    /** The async rebuild, picked by exact signature since the overloads differ between releases. */
+    private val rebuildMethod: Method? = appsFilterClass?.let { clazz ->
+        val pmInternal = XposedHelpers.findClassIfExists(
+            "android.content.pm.PackageManagerInternal", EzXHelper.classLoader
+        ) ?: return@let null
+        val long = Long::class.javaPrimitiveType
+        val int = Int::class.javaPrimitiveType
+        REBUILD_SIGNATURES.firstNotNullOfOrNull { signature ->
+            val types = listOf(pmInternal) + signature.map { if (it == 'L') long else int }
+            findMethodOrNull(clazz, findSuper = true) {
+                name == "updateEntireShouldFilterCacheAsync" && parameterTypes.contentEquals(types.toTypedArray())
+            }
+        }?.apply { isAccessible = true }
+    }
+
+    private val matrixMethods by lazy { MatrixMethods(cacheField!!.type) }
+
+    /** WatchedSparseBooleanMatrix accessors */
+    private class MatrixMethods(clazz: Class<*>) {
+        val size: Method = clazz.getMethod("size")
+        val keyAt: Method = clazz.getMethod("keyAt", Int::class.javaPrimitiveType)
+        val indexOfKey: Method = clazz.getMethod("indexOfKey", Int::class.javaPrimitiveType)
+        val put: Method = clazz.getMethod(
+            "put", Int::class.javaPrimitiveType, Int::class.javaPrimitiveType, Boolean::class.javaPrimitiveType
+        )
+    }
+
+    val isSupported get() = cacheField != null
+
+    @Volatile
+    private var appsFilter: Any? = null
+    private var constructorHooks: List<XC_MethodHook.Unhook> = emptyList()
+
+    /**
+     * Rules the cache was last built or written with. Set when AppsFilterImpl is created,
+     * since the framework fills its cache through the hooked method with the rules of that time.
+     */
+    @Volatile
+    private var applied = HideRules.EMPTY
+
+    private val handler by lazy {
+        Handler(HandlerThread("XHide-AppsFilter").apply { start() }.looper)
+    }
+    private val updateTask = Runnable { updateCache() }
+
+    override fun load() {
+        logI(TAG, "Load hook")
+        constructorHooks = hookAllConstructorAfter(APPS_FILTER_CLASS) { param ->
+            appsFilter = param.thisObject
+            applied = XPref.current()
+            logD(TAG, "Got AppsFilterImpl")
+        }.toList()
+    }
+
+    override fun unload() {
+        constructorHooks.forEach(XC_MethodHook.Unhook::unhook)
+        constructorHooks = emptyList()
+        handler.removeCallbacks(updateTask)
+    }
+
+    // Runs on the publishing thread; the cache walk is moved off it
+    override fun onConfigChanged() {
+        handler.removeCallbacks(updateTask)
+        handler.post(updateTask)
+    }
+
+    private fun updateCache() {
+        val filter = appsFilter ?: return
+        val rules = XPref.current()
+        val previous = applied
+        if (rules === previous) return
+        applied = rules
+        runCatching {
+            val matrix = cacheField!!.get(filter) ?: return
+            val lock = cacheLockField?.get(filter) ?: matrix
+            val uids = synchronized(lock) {
+                val methods = matrixMethods
+                IntArray(methods.size.invoke(matrix) as Int) { methods.keyAt.invoke(matrix, it) as Int }
+            }
+            // Resolve packages outside the cache lock
+            val pms = IPackageManager.Stub.asInterface(ServiceManager.getService("package"))
+            val packages = Array(uids.size) { i ->
+                if (SystemApps.isNeverHideUid(uids[i])) null
+                else Utils.binderLocalScope { pms.getPackagesForUid(uids[i]) }
+            }
+
+            val hiddenPairs = hiddenPairs(rules, uids, packages)
+            writeCells(matrix, lock, hiddenPairs, true)
+            logD(TAG, "Wrote ${hiddenPairs.size} hidden cells, generation = ${rules.generation}")
+            // Cells hidden under the previous rules may have to be shown again
+            if (previous.isEmpty || requestRebuild(filter)) return
+            val stale = hiddenPairs(previous, uids, packages) - hiddenPairs
+            writeCells(matrix, lock, stale, false)
+            logW(TAG, "Cache rebuild unavailable, cleared ${stale.size} stale cells")
+        }.onFailure {
+            logE(TAG, "Failed to update AppsFilter cache", it)
+        }
+    }
+
+    /** Every (caller uid, target uid) pair among [uids] that [rules] hides, packed into a long. */
+    private fun hiddenPairs(rules: HideRules, uids: IntArray, packages: Array<Array<String>?>): Set<Long> {
+        if (rules.isEmpty) return emptySet()
+        val ids = arrayOfNulls<IntArray>(uids.size)
+        val hidden = BooleanArray(uids.size)
+        val sandboxed = BooleanArray(uids.size)
+        val system = BooleanArray(uids.size)
+        for (i in uids.indices) {
+            val uidPackages = packages[i] ?: continue
+            val packageIds = IntArray(uidPackages.size) { rules.idOf(uidPackages[it]) }
+            ids[i] = packageIds
+            hidden[i] = packageIds.any { rules.isBlacklisted(it) }
+            sandboxed[i] = packageIds.any { rules.isWhitelisted(it) }
+            system[i] = SystemApps.isSystemUid(uids[i])
+        }
+
+        val pairs = HashSet<Long>()
+        for (c in uids.indices) {
+            val callerIds = ids[c] ?: continue
+            for (t in uids.indices) {
+                if (c == t || !(hidden[t] || sandboxed[c])) continue
+                val targetIds = ids[t] ?: continue
+                if (hides(rules, callerIds, targetIds, system[t])) {
+                    pairs += (uids[c].toLong() shl 32) or (uids[t].toLong() and 0xffffffffL)
+                }
+            }
+        }
+
+        return pairs
+    }
+
+    /** Set every cell in [pairs] to [value] under the cache lock. */
+    private fun writeCells(matrix: Any, lock: Any, pairs: Set<Long>, value: Boolean) {
+        if (pairs.isEmpty()) return
+        val methods = matrixMethods
+        synchronized(lock) {
+            for (pair in pairs) {
+                val callingUid = (pair ushr 32).toInt()
+                val targetUid = pair.toInt()
+                // Skip uids removed since the keys were read
+                if ((methods.indexOfKey.invoke(matrix, callingUid) as Int) < 0) continue
+                if ((methods.indexOfKey.invoke(matrix, targetUid) as Int) < 0) continue
+                methods.put.invoke(matrix, callingUid, targetUid, value)
+            }
+        }
+    }
+
+    // A uid is hidden from another if any of its packages is hidden from any of the other's
+    private fun hides(rules: HideRules, callerIds: IntArray, targetIds: IntArray, targetSystem: Boolean): Boolean {
+        for (callerId in callerIds) {
+            for (targetId in targetIds) {
+                if (rules.shouldHide(callerId, targetId, targetSystem)) return true
+            }
+        }
+        return false
+    }
+
+    /**
+     * Ask AppsFilterImpl to rebuild its whole cache in the background.
+     * Returns false if the rebuild method is missing or the call failed.
+     */
+    private fun requestRebuild(filter: Any): Boolean {
+        val method = rebuildMethod ?: return false
+        return runCatching {
+            val types = method.parameterTypes
+            val args = arrayOfNulls<Any>(types.size)
+            args[0] = localService(types[0])
+            for (i in 1 until types.size) {
+                args[i] = if (types[i] == Long::class.javaPrimitiveType) 0L else rebuildReason
+            }
+            method.invoke(filter, *args)
+            logI(TAG, "Requested AppsFilter cache rebuild")
+        }.onFailure {
+            logW(TAG, "Failed to request AppsFilter cache rebuild", it)
+        }.isSuccess
+    }
+
+    /** Android 14+ reports a reason with every rebuild; reuse the one it logs for user creation. */
+    private val rebuildReason: Int by lazy {
+        runCatching {
+            val statsLog = XposedHelpers.findClass("com.android.internal.util.FrameworkStatsLog", EzXHelper.classLoader)
+            statsLog.getField("APPS_FILTER_CACHE_BUILD_REPORTED__EVENT_TYPE__USER_CREATED").getInt(null)
+        }.getOrDefault(0)
+    }
+
+    private fun localService(type: Class<*>): Any? {
+        val localServices = XposedHelpers.findClass("com.android.server.LocalServices", EzXHelper.classLoader)
+        return XposedHelpers.callStaticMethod(localServices, "getService", type)
+    }
+}
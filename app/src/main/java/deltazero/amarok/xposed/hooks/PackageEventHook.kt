@@ -0,0 +1,78 @@
+package deltazero.amarok.xposed.hooks
+
+import com.github.kyuubiran.ezxhelper.utils.findMethodOrNull
+import com.github.kyuubiran.ezxhelper.utils.hookAfter
+import de.robv.android.xposed.XC_MethodHook
+import deltazero.amarok.xposed.logD
+import deltazero.amarok.xposed.logI
+import deltazero.amarok.xposed.logW
+import deltazero.amarok.xposed.utils.CallerCache
+import deltazero.amarok.xposed.utils.SystemApps
+import deltazero.amarok.xposed.utils.Utils
+import deltazero.amarok.xposed.utils.VerdictCache
+
+private const val TAG = "PackageEventHook"
+
+/**
+ * Invalidates uid-keyed caches when the package set changes, and records added
+ * and removed packages in [SystemApps].
+ * AppsFilter is told about every install, uninstall and replace (including shared
+ * user changes) through addPackage/removePackage, before the new state is visible
+ * to shouldFilterApplication. Before Android 11, Settings.insertPackageSettingLPw and
+ * removePackageLPw play the same role.
+ */
+class PackageEventHook(
+    private val targetClass: String,
+    private val addMethod: String = "addPackage",
+    private val removeMethod: String = "removePackage"
+) : IFrameworkHook {
+
+    private val hooks = mutableListOf<XC_MethodHook.Unhook>()
+
+    override fun load() {
+        logI(TAG, "Load hook")
+        for (method in arrayOf(addMethod, removeMethod)) {
+            val hook = findMethodOrNull(targetClass, findSuper = true) {
+                name == method
+            }?.hookAfter { param ->
+                logD(TAG, "@$method: invalidate caller and verdict caches")
+                if (method == addMethod) onPackageAdded(param.args)
+                else onPackageRemoved(param.args)
+                CallerCache.invalidate()
+                VerdictCache.invalidate()
+            }
+            if (hook != null) hooks += hook
+            else logW(TAG, "$targetClass.$method not found, uid caches may go stale")
+        }
+    }
+
+    private fun onPackageAdded(args: Array<Any?>) {
+        for (arg in args) {
+            if (arg == null || arg is String || arg is Boolean) continue
+            val packageName = Utils.getPackageNameFromPackageSettings(arg) ?: continue
+            val appId = Utils.getAppIdFromPackageSettings(arg)
+            SystemApps.onPackageAdded(packageName, appId, Utils.isSystemPackageSettings(arg) == true)
+            return
+        }
+    }
+
+    private fun onPackageRemoved(args: Array<Any?>) {
+        // A replace is followed by an add of the same package, which keeps its bits
+        if (args.any { it == true }) return
+        for (arg in args) {
+            if (arg == null || arg is Boolean) continue
+            if (arg is String) {
+                SystemApps.onPackageRemoved(arg, -1)
+                return
+            }
+            val packageName = Utils.getPackageNameFromPackageSettings(arg) ?: continue
+            SystemApps.onPackageRemoved(packageName, Utils.getAppIdFromPackageSettings(arg))
+            return
+        }
+    }
+
+    override fun unload() {
+        hooks.forEach(XC_MethodHook.Unhook::unhook)
+        hooks.clear()
+    }
+}
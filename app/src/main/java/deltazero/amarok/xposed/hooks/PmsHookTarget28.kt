@@ -0,0 +1,219 @@
+package deltazero.amarok.xposed.hooks
+
+import android.content.pm.ApplicationInfo
+import android.content.pm.IPackageManager
+import android.content.pm.PackageInfo
+import android.content.pm.ParceledListSlice
+import android.content.pm.ResolveInfo
+import android.os.Binder
+import android.os.Parcelable
+import android.os.UserHandle
+import com.github.kyuubiran.ezxhelper.utils.findMethod
+import com.github.kyuubiran.ezxhelper.utils.findMethodOrNull
+import com.github.kyuubiran.ezxhelper.utils.hookAfter
+import com.github.kyuubiran.ezxhelper.utils.hookBefore
+import de.robv.android.xposed.XC_MethodHook
+import deltazero.amarok.xposed.logD
+import deltazero.amarok.xposed.logE
+import deltazero.amarok.xposed.logI
+import deltazero.amarok.xposed.logW
+import deltazero.amarok.xposed.utils.CallerCache
+import deltazero.amarok.xposed.utils.FilterDecision
+import deltazero.amarok.xposed.utils.HideRules
+import deltazero.amarok.xposed.utils.HookMetrics
+import deltazero.amarok.xposed.utils.SystemApps
+import deltazero.amarok.xposed.utils.Utils
+import deltazero.amarok.xposed.utils.XPref
+
+private const val TAG = "PmsHookTarget28"
+private const val PMS_CLASS = "com.android.server.pm.PackageManagerService"
+
+/**
+ * HMA-style hook for Android 8-10 (API 26-29), before AppsFilter existed.
+ * Hooks PackageManagerService.filterAppAccessLPr for single-package queries, and
+ * post-filters the lists returned by applyPostResolutionFilter, queryIntentActivities,
+ * getInstalledPackages and getInstalledApplications.
+ *
+ * Lists are filtered in one pass: the caller is resolved once per call, each element is
+ * checked against the compiled [HideRules], and kept elements are compacted in place. A list
+ * that cannot be changed in place is copied instead and the copy becomes the result.
+ */
+class PmsHookTarget28 : IFrameworkHook {
+
+    private val getListMethod by lazy {
+        findMethod("android.content.pm.ParceledListSlice", findSuper = true) {
+            name == "getList" && parameterCount == 0
+        }
+    }
+
+    private val filterAppAccessMetrics = HookMetrics.of("filterAppAccessLPr")
+    private val listMetrics = HookMetrics.of("listFilter")
+
+    private var enabled = false
+    private val hooks = mutableListOf<XC_MethodHook.Unhook>()
+
+    override fun load() {
+        logI(TAG, "Load hook")
+        synchronized(this) { enabled = true }
+        onConfigChanged()
+    }
+
+    /**
+     * Install the hooks only while there is something to filter, so an empty
+     * config costs PMS nothing.
+     */
+    @Synchronized
+    override fun onConfigChanged() {
+        if (!enabled) return
+        val rules = XPref.current()
+        if (rules.isEmpty) {
+            if (hooks.isNotEmpty()) logI(TAG, "No rules, unhook PMS")
+            removeHooks()
+        } else if (hooks.isEmpty()) {
+            logI(TAG, "Hook PMS")
+            installHooks()
+        }
+    }
+
+    @Synchronized
+    override fun unload() {
+        enabled = false
+        removeHooks()
+    }
+
+    private fun removeHooks() {
+        hooks.forEach(XC_MethodHook.Unhook::unhook)
+        hooks.clear()
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun installHooks() {
+        findMethodOrNull(PMS_CLASS, findSuper = true) {
+            name == "filterAppAccessLPr" && parameterCount == 5
+        }?.hookBefore { param ->
+            val start = System.nanoTime()
+            var filtered = false
+            try {
+                runCatching {
+                    val rules = XPref.current()
+                    val callingUid = param.args[1] as Int
+                    if (SystemApps.isNeverHideUid(callingUid)) return@hookBefore
+                    val packageSettings = param.args[0] ?: return@hookBefore
+                    val targetAppId = Utils.getAppIdFromPackageSettings(packageSettings)
+                    if (SystemApps.isNeverHide(targetAppId)) return@hookBefore
+                    val targetApp = Utils.getPackageNameFromPackageSettings(packageSettings)
+                        ?: return@hookBefore
+                    val caller = resolveCaller(param.thisObject, callingUid, rules) ?: return@hookBefore
+                    if (FilterDecision.hides(rules, caller, rules.idOf(targetApp), SystemApps.isSystem(targetAppId))) {
+                        param.result = true
+                        filtered = true
+                        logD(TAG, callingUid) { "@filterAppAccessLPr caller: $callingUid, target: $targetApp" }
+                    }
+                }.onFailure {
+                    logE(TAG, "Fatal error occurred, disable hooks", it)
+                    unload()
+                }
+            } finally {
+                filterAppAccessMetrics.record(start, filtered)
+            }
+        }?.let { hooks += it } ?: logW(TAG, "filterAppAccessLPr not found")
+
+        // API 27 has applyPostResolutionFilter(list, ephemeralPkgName) without a calling uid
+        findMethodOrNull(PMS_CLASS, findSuper = true) {
+            name == "applyPostResolutionFilter"
+        }?.hookAfter { param ->
+            val callingUid = if (param.args.size > 3) param.args[3] as Int else Binder.getCallingUid()
+            filterList(param, callingUid, param.result as MutableList<ResolveInfo>?, ::appOf) { param.result = it }
+        }?.let { hooks += it }
+
+        hookParceledList<ResolveInfo>("queryIntentActivities", ::appOf)
+        hookParceledList<PackageInfo>("getInstalledPackages") { it.applicationInfo }
+        hookParceledList<ApplicationInfo>("getInstalledApplications") { it }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun <T : Parcelable> hookParceledList(method: String, appOf: (T) -> ApplicationInfo?) {
+        findMethodOrNull(PMS_CLASS, findSuper = true) {
+            name == method
+        }?.hookAfter { param ->
+            val slice = param.result ?: return@hookAfter
+            val list = getListMethod.invoke(slice) as MutableList<T>?
+            filterList(param, Binder.getCallingUid(), list, appOf) { param.result = ParceledListSlice(it) }
+        }?.let { hooks += it } ?: logW(TAG, "$method not found")
+    }
+
+    private fun <T> filterList(
+        param: XC_MethodHook.MethodHookParam,
+        callingUid: Int,
+        list: MutableList<T>?,
+        appOf: (T) -> ApplicationInfo?,
+        replace: (MutableList<T>) -> Unit
+    ) {
+        val start = System.nanoTime()
+        var removed = 0
+        try {
+            runCatching {
+                if (list.isNullOrEmpty() || SystemApps.isNeverHideUid(callingUid)) return
+                val rules = XPref.current()
+                if (rules.isEmpty) return
+                val caller = resolveCaller(param.thisObject, callingUid, rules) ?: return
+                if (!caller.sandboxed && rules.blacklistSize == 0) return
+
+                fun hidden(element: T): Boolean {
+                    val app = appOf(element) ?: return false
+                    val appId = UserHandle.getAppId(app.uid)
+                    return !SystemApps.isNeverHide(appId) &&
+                            FilterDecision.hides(rules, caller, rules.idOf(app.packageName), SystemApps.isSystem(appId))
+                }
+
+                // Compact kept elements to the front, then drop the tail in one call.
+                // Elements before [kept] are always the ones kept so far, and elements from [i] on
+                // are untouched, so a list that refuses a write can be finished as a copy.
+                val size = list.size
+                var kept = 0
+                var i = 0
+                try {
+                    while (i < size) {
+                        val element = list[i]
+                        if (!hidden(element)) {
+                            if (kept != i) list[kept] = element
+                            kept++
+                        }
+                        i++
+                    }
+                    if (kept < size) list.subList(kept, size).clear()
+                } catch (e: UnsupportedOperationException) {
+                    val copy = ArrayList<T>(list.subList(0, kept))
+                    for (j in i until size) {
+                        if (!hidden(list[j])) copy += list[j]
+                    }
+                    kept = copy.size
+                    replace(copy)
+                    logD(TAG, callingUid) { "@${param.method.name} result is read-only, replaced with a copy" }
+                }
+                removed = size - kept
+                if (removed > 0) {
+                    logD(TAG, callingUid) { "@${param.method.name} caller: $callingUid, removed $removed" }
+                }
+            }.onFailure {
+                logE(TAG, "Fatal error occurred, disable hooks", it)
+                unload()
+            }
+        } finally {
+            listMetrics.record(start, removed > 0)
+        }
+    }
+
+    private fun resolveCaller(pms: Any, callingUid: Int, rules: HideRules): CallerCache.Caller? {
+        CallerCache.peek(callingUid, rules)?.let { return it }
+        val generation = CallerCache.generation
+        val callingApps = Utils.binderLocalScope {
+            (pms as IPackageManager).getPackagesForUid(callingUid)
+        } ?: return null
+        return CallerCache.put(callingUid, rules, callingApps, generation)
+    }
+
+    private fun appOf(resolveInfo: ResolveInfo): ApplicationInfo? = with(resolveInfo) {
+        activityInfo?.applicationInfo ?: serviceInfo?.applicationInfo ?: providerInfo?.applicationInfo
+    }
+}
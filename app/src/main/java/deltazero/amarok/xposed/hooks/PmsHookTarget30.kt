@@ -5,55 +5,92 @@ import androidx.annotation.RequiresApi
 import com.github.kyuubiran.ezxhelper.utils.findMethod
 import com.github.kyuubiran.ezxhelper.utils.hookBefore
 import de.robv.android.xposed.XC_MethodHook
+import deltazero.amarok.xposed.utils.FilterDecision
+import deltazero.amarok.xposed.utils.HookMetrics
 import deltazero.amarok.xposed.utils.Utils
 import deltazero.amarok.xposed.utils.XPref
 import deltazero.amarok.xposed.logD
 import deltazero.amarok.xposed.logI
 import deltazero.amarok.xposed.logE
-import java.util.concurrent.atomic.AtomicReference
 
 private const val TAG = "PmsHookTarget30"
-private const val UID_SYSTEM = 1000
 
 /**
  * HMA-style hook for Android 11-12 (API 30-32).
  * Hooks AppsFilter.shouldFilterApplication
+ *
+ * The caller is resolved from the callingSetting argument (a PackageSetting, or the
+ * SharedUserSetting of a shared uid) instead of asking PMS, and cached per uid.
  */
 @RequiresApi(Build.VERSION_CODES.R)
 class PmsHookTarget30 : IFrameworkHook {
 
+    private val callerResolver = FilterDecision.CallerResolver { callingSetting, _ ->
+        callingSetting?.let(Utils::getPackagesFromSettingBase)
+    }
+
+    private val shouldFilterApplicationMetrics = HookMetrics.of("shouldFilterApplication")
+
+    private var enabled = false
     private var hook: XC_MethodHook.Unhook? = null
-    private var lastFilteredApp: AtomicReference<String?> = AtomicReference(null)
 
     override fun load() {
         logI(TAG, "Load hook")
-        hook = findMethod("com.android.server.pm.AppsFilter") {
+        synchronized(this) { enabled = true }
+        onConfigChanged()
+    }
+
+    /**
+     * Install the hooks only while there is something to filter, so an empty
+     * config costs PMS nothing.
+     */
+    @Synchronized
+    override fun onConfigChanged() {
+        if (!enabled) return
+        val rules = XPref.current()
+        if (rules.isEmpty) {
+            if (hook != null) logI(TAG, "No rules, unhook shouldFilterApplication")
+            hook?.unhook()
+            hook = null
+        } else if (hook == null) {
+            logI(TAG, "Hook shouldFilterApplication")
+            hook = hookShouldFilterApplication()
+        }
+    }
+
+    private fun hookShouldFilterApplication(): XC_MethodHook.Unhook {
+        return findMethod("com.android.server.pm.AppsFilter") {
             name == "shouldFilterApplication"
         }.hookBefore { param ->
-            runCatching {
-                XPref.refreshCache()
-                
-                val callingUid = param.args[0] as Int
-                if (callingUid == UID_SYSTEM) return@hookBefore
-                
-                val targetApp = Utils.getPackageNameFromPackageSettings(param.args[2])
-                    ?: return@hookBefore
+            val start = System.nanoTime()
+            var filtered = false
+            try {
+                runCatching {
+                    val callingUid = param.args[0] as Int
+                    val targetSetting = param.args[2]
+                    val targetApp = Utils.getPackageNameFromPackageSettings(targetSetting)
+                        ?: return@hookBefore
+                    val targetAppId = Utils.getAppIdFromPackageSettings(targetSetting)
                 
-                // For API 30-32, check if target should be hidden
-                if (XPref.shouldHide(null, targetApp)) {
-                    param.result = true
-                    val last = lastFilteredApp.getAndSet("uid:$callingUid")
-                    if (last != "uid:$callingUid") logI(TAG, "@shouldFilterApplication: query from uid:$callingUid")
-                    logD(TAG, "@shouldFilterApplication caller: $callingUid, target: $targetApp")
+                    if (FilterDecision.shouldFilter(XPref.current(), callingUid, targetAppId, targetApp,
+                            param.args[1], callerResolver)) {
+                        param.result = true
+                        filtered = true
+                        logD(TAG, callingUid) { "@shouldFilterApplication caller: $callingUid, target: $targetApp" }
+                    }
+                }.onFailure {
+                    logE(TAG, "Fatal error occurred, disable hooks", it)
+                    unload()
                 }
-            }.onFailure {
-                logE(TAG, "Fatal error occurred, disable hooks", it)
-                unload()
+            } finally {
+                shouldFilterApplicationMetrics.record(start, filtered)
             }
         }
     }
 
+    @Synchronized
     override fun unload() {
+        enabled = false
         hook?.unhook()
         hook = null
     }
@@ -5,22 +5,25 @@ import androidx.annotation.RequiresApi
 import com.github.kyuubiran.ezxhelper.utils.findMethod
 import com.github.kyuubiran.ezxhelper.utils.hookBefore
 import de.robv.android.xposed.XC_MethodHook
+import deltazero.amarok.xposed.utils.FilterDecision
+import deltazero.amarok.xposed.utils.HookMetrics
 import deltazero.amarok.xposed.utils.Utils
 import deltazero.amarok.xposed.utils.XPref
 import deltazero.amarok.xposed.logD
 import deltazero.amarok.xposed.logI
 import deltazero.amarok.xposed.logE
-import java.util.concurrent.atomic.AtomicReference
 
 private const val TAG = "PmsHookTarget33"
-private const val UID_SYSTEM = 1000
 
 /**
  * HMA-style hook for Android 13 (API 33).
  * Hooks AppsFilterImpl.shouldFilterApplication
  */
 @RequiresApi(Build.VERSION_CODES.TIRAMISU)
-class PmsHookTarget33 : IFrameworkHook {
+class PmsHookTarget33(
+    // shouldFilterApplicationInternal when AppsFilterCacheHook keeps the framework cache up to date
+    private val filterMethod: String = "shouldFilterApplication"
+) : IFrameworkHook {
 
     private val getPackagesForUidMethod by lazy {
         findMethod("com.android.server.pm.Computer") {
@@ -28,46 +31,75 @@ class PmsHookTarget33 : IFrameworkHook {
         }
     }
 
+    @Suppress("UNCHECKED_CAST")
+    private val callerResolver = FilterDecision.CallerResolver { snapshot, callingUid ->
+        Utils.binderLocalScope {
+            getPackagesForUidMethod.invoke(snapshot, callingUid) as Array<String>?
+        }
+    }
+
+    private val shouldFilterApplicationMetrics = HookMetrics.of(filterMethod)
+
+    private var enabled = false
     private var hook: XC_MethodHook.Unhook? = null
-    private var lastFilteredApp: AtomicReference<String?> = AtomicReference(null)
 
-    @Suppress("UNCHECKED_CAST")
     override fun load() {
         logI(TAG, "Load hook")
-        hook = findMethod("com.android.server.pm.AppsFilterImpl", findSuper = true) {
-            name == "shouldFilterApplication"
+        synchronized(this) { enabled = true }
+        onConfigChanged()
+    }
+
+    /**
+     * Install the hooks only while there is something to filter, so an empty
+     * config costs PMS nothing.
+     */
+    @Synchronized
+    override fun onConfigChanged() {
+        if (!enabled) return
+        val rules = XPref.current()
+        if (rules.isEmpty) {
+            if (hook != null) logI(TAG, "No rules, unhook $filterMethod")
+            hook?.unhook()
+            hook = null
+        } else if (hook == null) {
+            logI(TAG, "Hook $filterMethod")
+            hook = hookShouldFilterApplication()
+        }
+    }
+
+    private fun hookShouldFilterApplication(): XC_MethodHook.Unhook {
+        return findMethod("com.android.server.pm.AppsFilterImpl", findSuper = true) {
+            name == filterMethod
         }.hookBefore { param ->
-            runCatching {
-                XPref.refreshCache()
-                
-                val snapshot = param.args[0]
-                val callingUid = param.args[1] as Int
-                if (callingUid == UID_SYSTEM) return@hookBefore
-                
-                val callingApps = Utils.binderLocalScope {
-                    getPackagesForUidMethod.invoke(snapshot, callingUid) as Array<String>?
-                } ?: return@hookBefore
-                
-                val targetApp = Utils.getPackageNameFromPackageSettings(param.args[3])
-                    ?: return@hookBefore
+            val start = System.nanoTime()
+            var filtered = false
+            try {
+                runCatching {
+                    val callingUid = param.args[1] as Int
+                    val targetSetting = param.args[3]
+                    val targetApp = Utils.getPackageNameFromPackageSettings(targetSetting)
+                        ?: return@hookBefore
+                    val targetAppId = Utils.getAppIdFromPackageSettings(targetSetting)
                 
-                for (caller in callingApps) {
-                    if (XPref.shouldHide(caller, targetApp)) {
+                    if (FilterDecision.shouldFilter(XPref.current(), callingUid, targetAppId, targetApp,
+                            param.args[0], callerResolver)) {
                         param.result = true
-                        val last = lastFilteredApp.getAndSet(caller)
-                        if (last != caller) logI(TAG, "@shouldFilterApplication: query from $caller")
-                        logD(TAG, "@shouldFilterApplication caller: $callingUid $caller, target: $targetApp")
-                        return@hookBefore
+                        filtered = true
+                        logD(TAG, callingUid) { "@$filterMethod caller: $callingUid, target: $targetApp" }
                     }
+                }.onFailure {
+                    logE(TAG, "Fatal error occurred, disable hooks", it)
+                    unload()
                 }
-            }.onFailure {
-                logE(TAG, "Fatal error occurred, disable hooks", it)
-                unload()
+            } finally {
+                shouldFilterApplicationMetrics.record(start, filtered)
             }
         }
     }
 
+    @Synchronized
     override fun unload() {
+        enabled = false
         hook?.unhook()
         hook = null
     }
@@ -7,12 +7,13 @@ import com.github.kyuubiran.ezxhelper.utils.findMethod
 import com.github.kyuubiran.ezxhelper.utils.findMethodOrNull
 import com.github.kyuubiran.ezxhelper.utils.hookBefore
 import de.robv.android.xposed.XC_MethodHook
+import deltazero.amarok.xposed.utils.FilterDecision
+import deltazero.amarok.xposed.utils.HookMetrics
 import deltazero.amarok.xposed.utils.Utils
 import deltazero.amarok.xposed.utils.XPref
 import deltazero.amarok.xposed.logD
 import deltazero.amarok.xposed.logI
 import deltazero.amarok.xposed.logE
-import java.util.concurrent.atomic.AtomicReference
 
 private const val TAG = "PmsHookTarget34"
 private const val UID_SYSTEM = 1000
@@ -22,7 +23,10 @@ private const val UID_SYSTEM = 1000
  * Hooks AppsFilterImpl.shouldFilterApplication and getArchivedPackageInternal
  */
 @RequiresApi(Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
-class PmsHookTarget34 : IFrameworkHook {
+class PmsHookTarget34(
+    // shouldFilterApplicationInternal when AppsFilterCacheHook keeps the framework cache up to date
+    private val filterMethod: String = "shouldFilterApplication"
+) : IFrameworkHook {
 
     private val getPackagesForUidMethod by lazy {
         findMethod("com.android.server.pm.Computer") {
@@ -30,73 +34,122 @@ class PmsHookTarget34 : IFrameworkHook {
         }
     }
 
+    // AOSP exploit - https://github.com/aosp-mirror/platform_frameworks_base/commit/5bc482bd99ea18fe0b4064d486b29d5ae2d65139
+    // Only 14 QPR2+ has this method
+    private val getArchivedPackageInternalMethod by lazy {
+        findMethodOrNull("com.android.server.pm.PackageManagerService", findSuper = true) {
+            name == "getArchivedPackageInternal"
+        }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private val callerResolver = FilterDecision.CallerResolver { snapshot, callingUid ->
+        Utils.binderLocalScope {
+            getPackagesForUidMethod.invoke(snapshot, callingUid) as Array<String>?
+        }
+    }
+
+    private val shouldFilterApplicationMetrics = HookMetrics.of(filterMethod)
+    private val getArchivedPackageInternalMetrics = HookMetrics.of("getArchivedPackageInternal")
+
+    private var enabled = false
     private var hook: XC_MethodHook.Unhook? = null
     private var exphook: XC_MethodHook.Unhook? = null
-    private var lastFilteredApp: AtomicReference<String?> = AtomicReference(null)
 
-    @Suppress("UNCHECKED_CAST")
     override fun load() {
         logI(TAG, "Load hook")
-        hook = findMethod("com.android.server.pm.AppsFilterImpl", findSuper = true) {
-            name == "shouldFilterApplication"
+        synchronized(this) { enabled = true }
+        onConfigChanged()
+    }
+
+    /**
+     * Install the hooks only while there is something to filter, so an empty
+     * config costs PMS nothing.
+     */
+    @Synchronized
+    override fun onConfigChanged() {
+        if (!enabled) return
+        val rules = XPref.current()
+        if (rules.isEmpty) {
+            if (hook != null) logI(TAG, "No rules, unhook $filterMethod")
+            hook?.unhook()
+            hook = null
+        } else if (hook == null) {
+            logI(TAG, "Hook $filterMethod")
+            hook = hookShouldFilterApplication()
+        }
+        if (rules.blacklistSize == 0) {
+            if (exphook != null) logI(TAG, "Blacklist empty, unhook getArchivedPackageInternal")
+            exphook?.unhook()
+            exphook = null
+        } else if (exphook == null && getArchivedPackageInternalMethod != null) {
+            logI(TAG, "Hook getArchivedPackageInternal")
+            exphook = hookGetArchivedPackageInternal()
+        }
+    }
+
+    private fun hookShouldFilterApplication(): XC_MethodHook.Unhook {
+        return findMethod("com.android.server.pm.AppsFilterImpl", findSuper = true) {
+            name == filterMethod
         }.hookBefore { param ->
-            runCatching {
-                XPref.refreshCache()
-                
-                val snapshot = param.args[0]
-                val callingUid = param.args[1] as Int
-                if (callingUid == UID_SYSTEM) return@hookBefore
-                
-                val callingApps = Utils.binderLocalScope {
-                    getPackagesForUidMethod.invoke(snapshot, callingUid) as Array<String>?
-                } ?: return@hookBefore
+            val start = System.nanoTime()
+            var filtered = false
+            try {
+                runCatching {
+                    val callingUid = param.args[1] as Int
+                    val targetSetting = param.args[3]
+                    val targetApp = Utils.getPackageNameFromPackageSettings(targetSetting)
+                        ?: return@hookBefore
+                    val targetAppId = Utils.getAppIdFromPackageSettings(targetSetting)
                 
-                val targetApp = Utils.getPackageNameFromPackageSettings(param.args[3])
-                    ?: return@hookBefore
-                
-                for (caller in callingApps) {
-                    if (XPref.shouldHide(caller, targetApp)) {
+                    if (FilterDecision.shouldFilter(XPref.current(), callingUid, targetAppId, targetApp,
+                            param.args[0], callerResolver)) {
                         param.result = true
-                        val last = lastFilteredApp.getAndSet(caller)
-                        if (last != caller) logI(TAG, "@shouldFilterApplication: query from $caller")
-                        logD(TAG, "@shouldFilterApplication caller: $callingUid $caller, target: $targetApp")
-                        return@hookBefore
+                        filtered = true
+                        logD(TAG, callingUid) { "@$filterMethod caller: $callingUid, target: $targetApp" }
                     }
+                }.onFailure {
+                    logE(TAG, "Fatal error occurred, disable hooks", it)
+                    unload()
                 }
-            }.onFailure {
-                logE(TAG, "Fatal error occurred, disable hooks", it)
-                unload()
+            } finally {
+                shouldFilterApplicationMetrics.record(start, filtered)
             }
         }
-        
-        // AOSP exploit - https://github.com/aosp-mirror/platform_frameworks_base/commit/5bc482bd99ea18fe0b4064d486b29d5ae2d65139
-        // Only 14 QPR2+ has this method
-        exphook = findMethodOrNull("com.android.server.pm.PackageManagerService", findSuper = true) {
-            name == "getArchivedPackageInternal"
-        }?.hookBefore { param ->
-            runCatching {
-                XPref.refreshCache()
+    }
+
+    private fun hookGetArchivedPackageInternal(): XC_MethodHook.Unhook? {
+        return getArchivedPackageInternalMethod?.hookBefore { param ->
+            val start = System.nanoTime()
+            var filtered = false
+            try {
+                runCatching {
+                    val rules = XPref.current()
                 
-                val callingUid = Binder.getCallingUid()
-                if (callingUid == UID_SYSTEM) return@hookBefore
+                    val callingUid = Binder.getCallingUid()
+                    if (callingUid == UID_SYSTEM) return@hookBefore
                 
-                val targetApp = param.args[0].toString()
+                    val targetApp = param.args[0].toString()
                 
-                // Check if target should be hidden (blacklist check)
-                if (XPref.isBlacklisted(targetApp)) {
-                    param.result = null
-                    val last = lastFilteredApp.getAndSet("uid:$callingUid")
-                    if (last != "uid:$callingUid") logI(TAG, "@getArchivedPackageInternal: query from uid:$callingUid")
-                    logD(TAG, "@getArchivedPackageInternal caller: $callingUid, target: $targetApp")
+                    // Check if target should be hidden (blacklist check)
+                    if (rules.isBlacklisted(targetApp)) {
+                        param.result = null
+                        filtered = true
+                        logD(TAG, callingUid) { "@getArchivedPackageInternal caller: $callingUid, target: $targetApp" }
+                    }
+                }.onFailure {
+                    logE(TAG, "Fatal error occurred, disable hooks", it)
+                    unload()
                 }
-            }.onFailure {
-                logE(TAG, "Fatal error occurred, disable hooks", it)
-                unload()
+            } finally {
+                getArchivedPackageInternalMetrics.record(start, filtered)
             }
         }
     }
 
+    @Synchronized
     override fun unload() {
+        enabled = false
         hook?.unhook()
         hook = null
         exphook?.unhook()
@@ -0,0 +1,70 @@
+package deltazero.amarok.xposed.utils
+
+import android.util.SparseArray
+
+/**
+ * Calling uid → caller packages cache for the PMS filter hooks.
+ *
+ * Resolving the packages of a uid costs a reflective call and a Binder identity swap,
+ * and the answer only changes when packages are added, removed or replaced. Entries
+ * are bound to the [HideRules] they were built for, so a config change drops them, while
+ * a hook still running on an older snapshot leaves the table alone.
+ * A caller reads [generation] before resolving and hands it to [put], so packages resolved
+ * across an [invalidate] are not stored.
+ *
+ * The table is copy-on-write: lookups are a lock-free binary search over an int-keyed
+ * [SparseArray] that is never mutated after publication.
+ */
+object CallerCache {
+
+    /**
+     * Packages sharing one uid, with their ids in the rules the entry was built for.
+     */
+    class Caller(val packages: Array<String>, val ids: IntArray, val sandboxed: Boolean)
+
+    private class Table(val rules: HideRules, val entries: SparseArray<Caller>, val generation: Int)
+
+    @Volatile
+    private var table = Table(HideRules.EMPTY, SparseArray(), 0)
+    private val lock = Any()
+
+    /** Bumped by [invalidate]; read it before resolving the packages passed to [put]. */
+    val generation: Int get() = table.generation
+
+    /**
+     * Cached caller for [uid], or null if it has not been resolved under [rules] yet.
+     */
+    fun peek(uid: Int, rules: HideRules): Caller? {
+        val current = table
+        if (current.rules !== rules) return null
+        return current.entries.get(uid)
+    }
+
+    /**
+     * Record the [packages] of [uid], resolved at [generation], and return the entry.
+     * The entry is returned but not stored if the cache was invalidated meanwhile, or if
+     * [rules] is older than the rules of the table. Newer rules start a fresh table.
+     */
+    fun put(uid: Int, rules: HideRules, packages: Array<String>, generation: Int): Caller {
+        val ids = IntArray(packages.size) { rules.idOf(packages[it]) }
+        val caller = Caller(packages, ids, ids.any { rules.isWhitelisted(it) })
+        synchronized(lock) {
+            val current = table
+            if (current.generation != generation) return caller
+            if (rules.generation < current.rules.generation) return caller
+            val entries = if (current.rules === rules) current.entries.clone() else SparseArray()
+            entries.put(uid, caller)
+            table = Table(rules, entries, generation)
+        }
+        return caller
+    }
+
+    /**
+     * Drop every entry. Called whenever the package set changes.
+     */
+    fun invalidate() {
+        synchronized(lock) {
+            table = Table(table.rules, SparseArray(), table.generation + 1)
+        }
+    }
+}
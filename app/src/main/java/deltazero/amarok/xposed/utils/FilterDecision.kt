@@ -0,0 +1,77 @@
+package deltazero.amarok.xposed.utils
+
+import android.os.UserHandle
+
+/**
+ * Hide decision shared by the AppsFilter hooks of every Android version.
+ *
+ * Hooks only unpack their arguments and pass them here, so the hot path is one piece of
+ * framework-free code that the JVM benchmarks in :benchmark can run against stand-ins.
+ */
+object FilterDecision {
+
+    /**
+     * Resolves the packages of a calling uid when [CallerCache] misses. [source] is whatever
+     * the hook has at hand (e.g. the Computer snapshot or the calling setting), passed through
+     * so resolvers need not capture it and the hot path does not allocate.
+     */
+    fun interface CallerResolver {
+        fun packagesOf(source: Any?, callingUid: Int): Array<String>?
+    }
+
+    /**
+     * True if [targetApp], whose app id is [targetAppId] (-1 if unknown), must be hidden
+     * from [callingUid] under [rules]. The verdict is cached per (uid, target).
+     */
+    fun shouldFilter(
+        rules: HideRules,
+        callingUid: Int,
+        targetAppId: Int,
+        targetApp: String,
+        source: Any?,
+        resolver: CallerResolver
+    ): Boolean {
+        if (rules.isEmpty) return false
+        if (SystemApps.isNeverHide(UserHandle.getAppId(callingUid))) return false
+        if (SystemApps.isNeverHide(targetAppId)) return false
+
+        val targetId = rules.idOf(targetApp)
+        val blacklisted = rules.isBlacklisted(targetId)
+
+        // Only a blacklisted target or a sandboxed caller can be filtered
+        if (!blacklisted && rules.whitelistSize == 0) return false
+        val targetSystem = SystemApps.isSystem(targetAppId)
+        val targetKey = if (targetId < 0 && targetSystem) VerdictCache.SYSTEM_TARGET else targetId
+        val stamp = VerdictCache.stamp(rules)
+        when (VerdictCache.get(stamp, callingUid, targetKey)) {
+            VerdictCache.HIDE -> return true
+            VerdictCache.SHOW -> return false
+        }
+
+        var caller = CallerCache.peek(callingUid, rules)
+        if (caller != null && !blacklisted && !caller.sandboxed) {
+            VerdictCache.put(stamp, callingUid, targetKey, false)
+            return false
+        }
+
+        if (caller == null) {
+            val generation = CallerCache.generation
+            val callingApps = resolver.packagesOf(source, callingUid) ?: return false
+            caller = CallerCache.put(callingUid, rules, callingApps, generation)
+        }
+
+        val hide = hides(rules, caller, targetId, targetSystem)
+        VerdictCache.put(stamp, callingUid, targetKey, hide)
+        return hide
+    }
+
+    /**
+     * True if any package of [caller] must not see [targetId]. Not cached.
+     */
+    fun hides(rules: HideRules, caller: CallerCache.Caller, targetId: Int, targetSystem: Boolean): Boolean {
+        for (callerId in caller.ids) {
+            if (rules.shouldHide(callerId, targetId, targetSystem)) return true
+        }
+        return false
+    }
+}
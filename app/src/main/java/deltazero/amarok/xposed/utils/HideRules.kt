@@ -0,0 +1,572 @@
+package deltazero.amarok.xposed.utils
+
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+
+/**
+ * Hide decision table compiled from one configuration snapshot.
+ *
+ * The table lives in a compact, versioned binary image that the app writes once per
+ * change and system_server maps read-only. Every package named by the configuration
+ * gets a dense id, found through a perfect hash over [String.hashCode]. Blacklist and
+ * whitelist are bitsets over those ids, and each sandboxed caller has a sorted
+ * adjacency list of the packages it is allowed to see. Named templates are one shared
+ * bitset each; sandboxes only list the templates they apply. Lookups run directly against
+ * the buffer: a decision costs one hash probe per package name plus a few bit tests,
+ * and allocates nothing.
+ *
+ * Layout (little endian, all offsets absolute):
+ * ```
+ * header    [HEADER_SIZE]     magic, version, generation, counts, section offsets
+ * buckets   int[bucketCount]  displacement per bucket of the perfect hash
+ * slots     int[slotCount]    package id, or -1 for an empty slot
+ * entries   int[4 * n]        name hashCode, name offset, name length, next id with the same hashCode
+ * strings   char[]            package names, UTF-16
+ * blacklist long[(n + 63) / 64]
+ * whitelist long[(n + 63) / 64]
+ * system    long[(n + 63) / 64]  sandboxes that exclude system apps
+ * linkIndex int[2 * n]        start and length in linkData, start -1 if no row
+ * linkData  int[]             sorted linked package ids
+ * templates long[t * (n + 63) / 64]  packages visible through each template
+ * tplIndex  int[2 * n]        start and length in tplRefs, start -1 if no template applied
+ * tplRefs   int[]             applied template indices
+ * ```
+ *
+ * Instances are immutable and safe to share between binder threads.
+ */
+class HideRules private constructor(private val buf: ByteBuffer) {
+
+    val generation = buf.getLong(OFF_GENERATION)
+    val blacklistSize = buf.getInt(OFF_BLACKLIST_SIZE)
+    val whitelistSize = buf.getInt(OFF_WHITELIST_SIZE)
+
+    private val packageCount = buf.getInt(OFF_PACKAGE_COUNT)
+    private val slotMask = buf.getInt(OFF_SLOT_COUNT) - 1
+    private val bucketMask = buf.getInt(OFF_BUCKET_COUNT) - 1
+    private val bucketsOff = buf.getInt(OFF_BUCKETS)
+    private val slotsOff = buf.getInt(OFF_SLOTS)
+    private val entriesOff = buf.getInt(OFF_ENTRIES)
+    private val stringsOff = buf.getInt(OFF_STRINGS)
+    private val blacklistOff = buf.getInt(OFF_BLACKLIST)
+    private val whitelistOff = buf.getInt(OFF_WHITELIST)
+    private val excludeSystemOff = buf.getInt(OFF_EXCLUDE_SYSTEM)
+    private val linkIndexOff = buf.getInt(OFF_LINK_INDEX)
+    private val linkDataOff = buf.getInt(OFF_LINK_DATA)
+    private val templatesOff = buf.getInt(OFF_TEMPLATES)
+    private val templateIndexOff = buf.getInt(OFF_TEMPLATE_INDEX)
+    private val templateRefsOff = buf.getInt(OFF_TEMPLATE_REFS)
+    private val templateStride = (packageCount + 63) / 64 * 8
+
+    /** Number of templates applied by at least one sandboxed app. */
+    val templateCount = buf.getInt(OFF_TEMPLATE_COUNT)
+
+    /** True if no package is blacklisted or sandboxed, so nothing can ever be hidden. */
+    val isEmpty get() = blacklistSize == 0 && whitelistSize == 0
+
+    /** Dense id of [packageName], or -1 if the configuration does not mention it. */
+    fun idOf(packageName: String?): Int {
+        if (packageName == null || packageCount == 0) return -1
+        val hash = packageName.hashCode()
+        val displacement = buf.getInt(bucketsOff + (mix(hash, BUCKET_SEED) and bucketMask) * 4)
+        var id = buf.getInt(slotsOff + (mix(hash, displacement) and slotMask) * 4)
+        // The slot may belong to another hash if the name is not in the table
+        if (id < 0 || buf.getInt(entriesOff + id * ENTRY_SIZE) != hash) return -1
+        while (id >= 0) {
+            if (nameEquals(id, packageName)) return id
+            id = buf.getInt(entriesOff + id * ENTRY_SIZE + 12)
+        }
+        return -1
+    }
+
+    private fun nameEquals(id: Int, packageName: String): Boolean {
+        val entry = entriesOff + id * ENTRY_SIZE
+        val length = buf.getInt(entry + 8)
+        if (length != packageName.length) return false
+        val start = stringsOff + buf.getInt(entry + 4)
+        // Compare four UTF-16 units per read; package names are usually 15-40 chars
+        var i = 0
+        while (i + 4 <= length) {
+            val expected = packageName[i].code.toLong() or
+                    (packageName[i + 1].code.toLong() shl 16) or
+                    (packageName[i + 2].code.toLong() shl 32) or
+                    (packageName[i + 3].code.toLong() shl 48)
+            if (buf.getLong(start + i * 2) != expected) return false
+            i += 4
+        }
+        while (i < length) {
+            if (buf.getChar(start + i * 2) != packageName[i]) return false
+            i++
+        }
+        return true
+    }
+
+    /**
+     * Determine if target should be hidden from caller.
+     *
+     * Logic:
+     * 1. If target is blacklisted → HIDE from everyone
+     * 2. If caller is whitelisted (sandboxed) → HIDE unless target is linked,
+     *    or target is a system app and the sandbox excludes system apps
+     */
+    fun shouldHide(caller: String?, target: String?): Boolean {
+        if (caller == null && target == null) return false
+        return shouldHide(idOf(caller), idOf(target))
+    }
+
+    /**
+     * Same as [shouldHide] for already resolved ids; -1 stands for a package
+     * the configuration does not mention.
+     */
+    fun shouldHide(callerId: Int, targetId: Int): Boolean = shouldHide(callerId, targetId, false)
+
+    /**
+     * Same as [shouldHide]; [targetIsSystem] tells whether the target is a system app,
+     * which sandboxes excluding system apps may always see.
+     */
+    fun shouldHide(callerId: Int, targetId: Int, targetIsSystem: Boolean): Boolean {
+        // Same package; two unknown packages can never match a rule below
+        if (callerId == targetId && callerId >= 0) return false
+
+        // Rule 1: Blacklist - target hidden from ALL
+        if (isBlacklisted(targetId)) return true
+
+        // Rule 2: Whitelist - caller is sandboxed
+        if (isWhitelisted(callerId)) {
+            if (targetIsSystem && excludesSystemApps(callerId)) return false
+            return targetId < 0 || !isLinked(callerId, targetId)
+        }
+
+        return false
+    }
+
+    fun isBlacklisted(packageName: String): Boolean = isBlacklisted(idOf(packageName))
+
+    fun isBlacklisted(id: Int): Boolean = id >= 0 && testBit(blacklistOff, id)
+
+    fun isWhitelisted(packageName: String): Boolean = isWhitelisted(idOf(packageName))
+
+    fun isWhitelisted(id: Int): Boolean = id >= 0 && testBit(whitelistOff, id)
+
+    /** True if the sandboxed caller [id] may always see system apps. */
+    fun excludesSystemApps(id: Int): Boolean = id >= 0 && testBit(excludeSystemOff, id)
+
+    private fun testBit(sectionOff: Int, id: Int): Boolean {
+        val word = buf.getLong(sectionOff + (id ushr 6) * 8)
+        return (word ushr (id and 63)) and 1L != 0L
+    }
+
+    private fun isLinked(callerId: Int, targetId: Int): Boolean {
+        return isInRow(callerId, targetId) || isInTemplates(callerId, targetId)
+    }
+
+    private fun isInRow(callerId: Int, targetId: Int): Boolean {
+        val index = linkIndexOff + callerId * 8
+        val start = buf.getInt(index)
+        if (start < 0) return false
+        var low = 0
+        var high = buf.getInt(index + 4) - 1
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            val value = buf.getInt(linkDataOff + (start + mid) * 4)
+            when {
+                value < targetId -> low = mid + 1
+                value > targetId -> high = mid - 1
+                else -> return true
+            }
+        }
+        return false
+    }
+
+    private fun isInTemplates(callerId: Int, targetId: Int): Boolean {
+        val index = templateIndexOff + callerId * 8
+        val start = buf.getInt(index)
+        if (start < 0) return false
+        val end = start + buf.getInt(index + 4)
+        for (i in start until end) {
+            val template = buf.getInt(templateRefsOff + i * 4)
+            if (testBit(templatesOff + template * templateStride, targetId)) return true
+        }
+        return false
+    }
+
+    companion object {
+        private const val MAGIC = 0x414d5848 // "AMXH"
+        const val FORMAT_VERSION = 3
+
+        private const val OFF_MAGIC = 0
+        private const val OFF_VERSION = 4
+        private const val OFF_GENERATION = 8
+        private const val OFF_PACKAGE_COUNT = 16
+        private const val OFF_SLOT_COUNT = 20
+        private const val OFF_BUCKET_COUNT = 24
+        private const val OFF_BLACKLIST_SIZE = 28
+        private const val OFF_WHITELIST_SIZE = 32
+        private const val OFF_TEMPLATE_COUNT = 36
+        private const val OFF_BUCKETS = 40
+        private const val OFF_SLOTS = 44
+        private const val OFF_ENTRIES = 48
+        private const val OFF_STRINGS = 52
+        private const val OFF_BLACKLIST = 56
+        private const val OFF_WHITELIST = 60
+        private const val OFF_EXCLUDE_SYSTEM = 64
+        private const val OFF_LINK_INDEX = 68
+        private const val OFF_LINK_DATA = 72
+        private const val OFF_TEMPLATES = 76
+        private const val OFF_TEMPLATE_INDEX = 80
+        private const val OFF_TEMPLATE_REFS = 84
+        private const val OFF_LENGTH = 88
+        private const val HEADER_SIZE = 92
+
+        private const val ENTRY_SIZE = 16
+        private const val BUCKET_SEED = 0x5bd1e995
+        private const val MAX_DISPLACEMENT = 1 shl 20
+
+        val EMPTY = compile(emptySet(), emptySet(), emptyMap(), emptySet(), emptyMap(), emptyMap())
+
+        private fun mix(hash: Int, seed: Int): Int {
+            var x = hash xor (seed * -0x61c88647)
+            x = x xor (x ushr 16)
+            x *= -0x7a143595
+            x = x xor (x ushr 13)
+            x *= -0x3d4d51cb
+            return x xor (x ushr 16)
+        }
+
+        private fun tableSize(min: Int): Int {
+            var size = 1
+            while (size < min) size = size shl 1
+            return size
+        }
+
+        /**
+         * Wrap an encoded image, e.g. a read-only mapping of the config file.
+         *
+         * @throws IllegalArgumentException if the image is malformed or of another version
+         */
+        @JvmStatic
+        fun wrap(image: ByteBuffer): HideRules {
+            val buffer = image.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+            val limit = buffer.limit()
+            require(limit >= HEADER_SIZE) { "Truncated header" }
+            require(buffer.getInt(OFF_MAGIC) == MAGIC) { "Bad magic" }
+            require(buffer.getInt(OFF_VERSION) == FORMAT_VERSION) { "Unsupported version ${buffer.getInt(OFF_VERSION)}" }
+            require(buffer.getInt(OFF_LENGTH) == limit) { "Length mismatch" }
+            val slotCount = buffer.getInt(OFF_SLOT_COUNT)
+            val bucketCount = buffer.getInt(OFF_BUCKET_COUNT)
+            require(slotCount > 0 && slotCount and (slotCount - 1) == 0) { "Bad slot count" }
+            require(bucketCount > 0 && bucketCount and (bucketCount - 1) == 0) { "Bad bucket count" }
+            var previous = HEADER_SIZE
+            for (off in OFF_BUCKETS..OFF_TEMPLATE_REFS step 4) {
+                val section = buffer.getInt(off)
+                require(section in previous..limit) { "Bad section offset" }
+                previous = section
+            }
+            validateSections(buffer, slotCount, bucketCount)
+            return HideRules(buffer)
+        }
+
+        /**
+         * Check every section's size against the header counts and every stored id, offset
+         * and range against its section, so lookups on a wrapped image can never go out of
+         * bounds or loop. Runs once per image, before it is published to the hooks.
+         */
+        private fun validateSections(buffer: ByteBuffer, slotCount: Int, bucketCount: Int) {
+            val n = buffer.getInt(OFF_PACKAGE_COUNT)
+            val t = buffer.getInt(OFF_TEMPLATE_COUNT)
+            require(n >= 0 && t >= 0) { "Bad counts" }
+            val words = (n + 63) / 64L
+
+            fun sectionSize(start: Int, end: Int) = (buffer.getInt(end) - buffer.getInt(start)).toLong()
+            fun requireSize(start: Int, end: Int, expected: Long, name: String) =
+                require(sectionSize(start, end) == expected) { "Bad $name size" }
+
+            requireSize(OFF_BUCKETS, OFF_SLOTS, bucketCount * 4L, "buckets")
+            requireSize(OFF_SLOTS, OFF_ENTRIES, slotCount * 4L, "slots")
+            requireSize(OFF_ENTRIES, OFF_STRINGS, n.toLong() * ENTRY_SIZE, "entries")
+            requireSize(OFF_BLACKLIST, OFF_WHITELIST, words * 8, "blacklist")
+            requireSize(OFF_WHITELIST, OFF_EXCLUDE_SYSTEM, words * 8, "whitelist")
+            requireSize(OFF_EXCLUDE_SYSTEM, OFF_LINK_INDEX, words * 8, "system")
+            requireSize(OFF_LINK_INDEX, OFF_LINK_DATA, n * 8L, "link index")
+            requireSize(OFF_TEMPLATES, OFF_TEMPLATE_INDEX, t * words * 8, "templates")
+            requireSize(OFF_TEMPLATE_INDEX, OFF_TEMPLATE_REFS, n * 8L, "template index")
+            val stringsSize = sectionSize(OFF_STRINGS, OFF_BLACKLIST)
+            val linkDataSize = sectionSize(OFF_LINK_DATA, OFF_TEMPLATES)
+            val templateRefsSize = buffer.limit() - buffer.getInt(OFF_TEMPLATE_REFS).toLong()
+            require(stringsSize % 2 == 0L) { "Bad strings size" }
+            require(linkDataSize % 4 == 0L) { "Bad link data size" }
+            require(templateRefsSize % 4 == 0L) { "Bad template refs size" }
+
+            val slotsOff = buffer.getInt(OFF_SLOTS)
+            for (i in 0 until slotCount) {
+                val id = buffer.getInt(slotsOff + i * 4)
+                require(id in -1 until n) { "Bad slot $i" }
+            }
+
+            val entriesOff = buffer.getInt(OFF_ENTRIES)
+            for (id in 0 until n) {
+                val entry = entriesOff + id * ENTRY_SIZE
+                val nameOff = buffer.getInt(entry + 4).toLong()
+                val nameLength = buffer.getInt(entry + 8).toLong()
+                require(nameOff >= 0 && nameLength >= 0 && nameOff + nameLength * 2 <= stringsSize) {
+                    "Bad name of entry $id"
+                }
+                // Chains only point forward, so idOf always terminates
+                val next = buffer.getInt(entry + 12)
+                require(next == -1 || next in id + 1 until n) { "Bad chain of entry $id" }
+            }
+
+            fun requireRanges(indexOff: Int, capacity: Long, name: String) {
+                for (id in 0 until n) {
+                    val start = buffer.getInt(indexOff + id * 8).toLong()
+                    val length = buffer.getInt(indexOff + id * 8 + 4).toLong()
+                    if (start == -1L) continue
+                    require(start >= 0 && length >= 0 && start + length <= capacity) { "Bad $name range of $id" }
+                }
+            }
+            requireRanges(buffer.getInt(OFF_LINK_INDEX), linkDataSize / 4, "link")
+            requireRanges(buffer.getInt(OFF_TEMPLATE_INDEX), templateRefsSize / 4, "template")
+
+            val templateRefsOff = buffer.getInt(OFF_TEMPLATE_REFS)
+            for (i in 0 until templateRefsSize / 4) {
+                val ref = buffer.getInt(templateRefsOff + i.toInt() * 4)
+                require(ref in 0 until t) { "Bad template ref $i" }
+            }
+        }
+
+        /**
+         * Read the generation of an encoded config file without mapping it.
+         * Returns 0 if the file is missing or not a config image.
+         */
+        @JvmStatic
+        fun readGeneration(file: File): Long {
+            return runCatching {
+                FileChannel.open(file.toPath(), StandardOpenOption.READ).use(::readGeneration)
+            }.getOrDefault(0)
+        }
+
+        /**
+         * Read the generation from the header of an open config file.
+         * Returns 0 if the file is not a config image.
+         */
+        @JvmStatic
+        fun readGeneration(channel: FileChannel): Long {
+            val header = ByteBuffer.allocate(OFF_GENERATION + 8).order(ByteOrder.LITTLE_ENDIAN)
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position().toLong()) < 0) return 0
+            }
+            if (header.getInt(OFF_MAGIC) != MAGIC) return 0
+            return header.getLong(OFF_GENERATION)
+        }
+
+        fun compile(
+            blacklist: Collection<String>,
+            whitelist: Collection<String>,
+            linked: Map<String, Collection<String>>,
+            excludeSystem: Collection<String>,
+            templates: Map<String, Collection<String>>,
+            applied: Map<String, Collection<String>>
+        ): HideRules = wrap(ByteBuffer.wrap(encode(blacklist, whitelist, linked, excludeSystem, templates, applied, 0)))
+
+        /**
+         * Encode a configuration into the binary image read by [wrap].
+         * [excludeSystem] lists the sandboxed apps that may always see system apps.
+         * [templates] maps template names to the packages they make visible, and [applied]
+         * maps sandboxed apps to the names of the templates they use.
+         */
+        @JvmStatic
+        fun encode(
+            blacklist: Collection<String>,
+            whitelist: Collection<String>,
+            linked: Map<String, Collection<String>>,
+            excludeSystem: Collection<String>,
+            templates: Map<String, Collection<String>>,
+            applied: Map<String, Collection<String>>,
+            generation: Long
+        ): ByteArray {
+            val ids = LinkedHashMap<String, Int>()
+            fun intern(packageName: String) = ids.getOrPut(packageName) { ids.size }
+
+            blacklist.forEach(::intern)
+            whitelist.forEach(::intern)
+            // Links of apps that are not sandboxed never apply
+            for (caller in whitelist) linked[caller]?.forEach(::intern)
+            // Only templates applied by a sandboxed app are encoded, each once
+            val templateIndices = LinkedHashMap<String, Int>()
+            for (caller in whitelist) {
+                for (name in applied[caller] ?: continue) {
+                    val apps = templates[name] ?: continue
+                    if (name !in templateIndices) {
+                        templateIndices[name] = templateIndices.size
+                        apps.forEach(::intern)
+                    }
+                }
+            }
+
+            val names = ids.keys.toTypedArray()
+            val n = names.size
+            val words = (n + 63) / 64
+
+            // Packages sharing a hashCode are chained; the perfect hash covers distinct hashes
+            val next = IntArray(n) { -1 }
+            val heads = LinkedHashMap<Int, Int>()
+            for (id in n - 1 downTo 0) {
+                val hash = names[id].hashCode()
+                heads[hash]?.let { next[id] = it }
+                heads[hash] = id
+            }
+            val (buckets, slots) = buildPerfectHash(heads)
+
+            val blacklistBits = LongArray(words)
+            val blacklistIds = blacklist.mapTo(HashSet()) { ids[it]!! }
+            blacklistIds.forEach { blacklistBits[it ushr 6] = blacklistBits[it ushr 6] or (1L shl (it and 63)) }
+            val whitelistBits = LongArray(words)
+            val whitelistIds = whitelist.mapTo(HashSet()) { ids[it]!! }
+            whitelistIds.forEach { whitelistBits[it ushr 6] = whitelistBits[it ushr 6] or (1L shl (it and 63)) }
+            val excludeSystemBits = LongArray(words)
+            for (caller in excludeSystem) {
+                val id = ids[caller] ?: continue
+                if (id !in whitelistIds) continue
+                excludeSystemBits[id ushr 6] = excludeSystemBits[id ushr 6] or (1L shl (id and 63))
+            }
+
+            val rows = arrayOfNulls<IntArray>(n)
+            for (caller in whitelist) {
+                val targets = linked[caller] ?: continue
+                rows[ids[caller]!!] = targets.map { ids[it]!! }.distinct().sorted().toIntArray()
+            }
+            val linkCount = rows.sumOf { it?.size ?: 0 }
+
+            val templateBits = Array(templateIndices.size) { LongArray(words) }
+            for ((name, index) in templateIndices) {
+                val bits = templateBits[index]
+                for (app in templates[name]!!) {
+                    val id = ids[app]!!
+                    bits[id ushr 6] = bits[id ushr 6] or (1L shl (id and 63))
+                }
+            }
+            val templateRows = arrayOfNulls<IntArray>(n)
+            for (caller in whitelist) {
+                val templateNames = applied[caller] ?: continue
+                val row = templateNames.mapNotNull { templateIndices[it] }.distinct().toIntArray()
+                if (row.isNotEmpty()) templateRows[ids[caller]!!] = row
+            }
+            val templateRefCount = templateRows.sumOf { it?.size ?: 0 }
+            val charCount = names.sumOf { it.length }
+
+            val bucketsOff = HEADER_SIZE
+            val slotsOff = bucketsOff + buckets.size * 4
+            val entriesOff = slotsOff + slots.size * 4
+            val stringsOff = entriesOff + n * ENTRY_SIZE
+            val blacklistOff = stringsOff + charCount * 2
+            val whitelistOff = blacklistOff + words * 8
+            val excludeSystemOff = whitelistOff + words * 8
+            val linkIndexOff = excludeSystemOff + words * 8
+            val linkDataOff = linkIndexOff + n * 8
+            val templatesOff = linkDataOff + linkCount * 4
+            val templateIndexOff = templatesOff + templateBits.size * words * 8
+            val templateRefsOff = templateIndexOff + n * 8
+            val length = templateRefsOff + templateRefCount * 4
+
+            val out = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN)
+            out.putInt(OFF_MAGIC, MAGIC)
+            out.putInt(OFF_VERSION, FORMAT_VERSION)
+            out.putLong(OFF_GENERATION, generation)
+            out.putInt(OFF_PACKAGE_COUNT, n)
+            out.putInt(OFF_SLOT_COUNT, slots.size)
+            out.putInt(OFF_BUCKET_COUNT, buckets.size)
+            out.putInt(OFF_BLACKLIST_SIZE, blacklistIds.size)
+            out.putInt(OFF_WHITELIST_SIZE, whitelistIds.size)
+            out.putInt(OFF_TEMPLATE_COUNT, templateBits.size)
+            out.putInt(OFF_BUCKETS, bucketsOff)
+            out.putInt(OFF_SLOTS, slotsOff)
+            out.putInt(OFF_ENTRIES, entriesOff)
+            out.putInt(OFF_STRINGS, stringsOff)
+            out.putInt(OFF_BLACKLIST, blacklistOff)
+            out.putInt(OFF_WHITELIST, whitelistOff)
+            out.putInt(OFF_EXCLUDE_SYSTEM, excludeSystemOff)
+            out.putInt(OFF_LINK_INDEX, linkIndexOff)
+            out.putInt(OFF_LINK_DATA, linkDataOff)
+            out.putInt(OFF_TEMPLATES, templatesOff)
+            out.putInt(OFF_TEMPLATE_INDEX, templateIndexOff)
+            out.putInt(OFF_TEMPLATE_REFS, templateRefsOff)
+            out.putInt(OFF_LENGTH, length)
+
+            buckets.forEachIndexed { i, d -> out.putInt(bucketsOff + i * 4, d) }
+            slots.forEachIndexed { i, id -> out.putInt(slotsOff + i * 4, id) }
+            var charOff = 0
+            for (id in 0 until n) {
+                val entry = entriesOff + id * ENTRY_SIZE
+                out.putInt(entry, names[id].hashCode())
+                out.putInt(entry + 4, charOff * 2)
+                out.putInt(entry + 8, names[id].length)
+                out.putInt(entry + 12, next[id])
+                for (c in names[id]) out.putChar(stringsOff + charOff++ * 2, c)
+            }
+            for (w in 0 until words) {
+                out.putLong(blacklistOff + w * 8, blacklistBits[w])
+                out.putLong(whitelistOff + w * 8, whitelistBits[w])
+                out.putLong(excludeSystemOff + w * 8, excludeSystemBits[w])
+            }
+            var linkOff = 0
+            for (id in 0 until n) {
+                val row = rows[id]
+                out.putInt(linkIndexOff + id * 8, if (row == null) -1 else linkOff)
+                out.putInt(linkIndexOff + id * 8 + 4, row?.size ?: 0)
+                row?.forEach { out.putInt(linkDataOff + linkOff++ * 4, it) }
+            }
+            for ((index, bits) in templateBits.withIndex()) {
+                for (w in 0 until words) out.putLong(templatesOff + (index * words + w) * 8, bits[w])
+            }
+            var refOff = 0
+            for (id in 0 until n) {
+                val row = templateRows[id]
+                out.putInt(templateIndexOff + id * 8, if (row == null) -1 else refOff)
+                out.putInt(templateIndexOff + id * 8 + 4, row?.size ?: 0)
+                row?.forEach { out.putInt(templateRefsOff + refOff++ * 4, it) }
+            }
+            return out.array()
+        }
+
+        /**
+         * Hash-and-displace construction: hashes are grouped into buckets, and each
+         * bucket (largest first) searches for a displacement that moves all of its
+         * hashes into free slots.
+         */
+        private fun buildPerfectHash(heads: Map<Int, Int>): Pair<IntArray, IntArray> {
+            var slotCount = tableSize(maxOf(1, heads.size * 2))
+            val bucketCount = tableSize(maxOf(1, heads.size / 4))
+            val bucketed = heads.keys.groupBy { mix(it, BUCKET_SEED) and (bucketCount - 1) }
+                .entries.sortedByDescending { it.value.size }
+
+            while (true) {
+                val buckets = IntArray(bucketCount)
+                val slots = IntArray(slotCount) { -1 }
+                val placed = bucketed.all { (bucket, hashes) ->
+                    val taken = IntArray(hashes.size)
+                    for (d in 0 until MAX_DISPLACEMENT) {
+                        var ok = true
+                        for ((i, hash) in hashes.withIndex()) {
+                            val slot = mix(hash, d) and (slotCount - 1)
+                            if (slots[slot] >= 0 || (0 until i).any { taken[it] == slot }) {
+                                ok = false
+                                break
+                            }
+                            taken[i] = slot
+                        }
+                        if (ok) {
+                            buckets[bucket] = d
+                            hashes.forEachIndexed { i, hash -> slots[taken[i]] = heads[hash]!! }
+                            return@all true
+                        }
+                    }
+                    false
+                }
+                if (placed) return buckets to slots
+                slotCount = slotCount shl 1
+            }
+        }
+    }
+}
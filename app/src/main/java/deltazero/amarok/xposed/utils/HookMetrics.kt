@@ -0,0 +1,136 @@
+package deltazero.amarok.xposed.utils
+
+import android.os.Bundle
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.SystemClock
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Call count, filter count and latency histogram of one hooked method.
+ *
+ * Recording is a few uncontended [LongAdder] increments. Latencies go into a fixed
+ * log-linear histogram: [SUB_BUCKETS] linear buckets per power of two of nanoseconds,
+ * so every bucket is within 25% of the values it holds.
+ *
+ * Every [SNAPSHOT_INTERVAL_MS] all registered metrics are summarized on a background
+ * thread; [snapshot] returns the latest summary for the app.
+ */
+class HookMetrics private constructor(val name: String) {
+
+    companion object {
+        private const val SUB_BUCKET_BITS = 2
+        private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+
+        // Powers of two up to ~1 s; slower calls land in the last bucket
+        private const val MAX_EXPONENT = 30
+        private const val BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS
+
+        private const val SNAPSHOT_INTERVAL_MS = 5000L
+
+        // Keys of each per-hook bundle in snapshot()
+        const val KEY_CALLS = "calls"
+        const val KEY_FILTERED = "filtered"
+        const val KEY_CALLS_PER_SEC = "calls_per_sec"
+        const val KEY_P50_NS = "p50_ns"
+        const val KEY_P99_NS = "p99_ns"
+
+        private val registered = CopyOnWriteArrayList<HookMetrics>()
+
+        @Volatile
+        private var lastSnapshot = Bundle()
+
+        private val handler by lazy {
+            Handler(HandlerThread("XHide-Metrics").apply { start() }.looper)
+        }
+
+        private val snapshotTask = object : Runnable {
+            override fun run() {
+                val bundle = Bundle()
+                for (metrics in registered) bundle.putBundle(metrics.name, metrics.summarize())
+                lastSnapshot = bundle
+                handler.postDelayed(this, SNAPSHOT_INTERVAL_MS)
+            }
+        }
+
+        /**
+         * Metrics for the hook on [name], created on first use.
+         */
+        @Synchronized
+        fun of(name: String): HookMetrics {
+            registered.firstOrNull { it.name == name }?.let { return it }
+            val metrics = HookMetrics(name)
+            if (registered.isEmpty()) handler.postDelayed(snapshotTask, SNAPSHOT_INTERVAL_MS)
+            registered += metrics
+            return metrics
+        }
+
+        /**
+         * Latest summary: one bundle per hook name, see the KEY_* constants.
+         */
+        fun snapshot(): Bundle = lastSnapshot
+
+        private fun bucketOf(ns: Long): Int {
+            if (ns < SUB_BUCKETS) return maxOf(ns, 0).toInt()
+            val exponent = 63 - java.lang.Long.numberOfLeadingZeros(ns)
+            if (exponent > MAX_EXPONENT) return BUCKET_COUNT - 1
+            val shift = exponent - SUB_BUCKET_BITS
+            return ((shift + 1) shl SUB_BUCKET_BITS) + ((ns ushr shift).toInt() and (SUB_BUCKETS - 1))
+        }
+
+        // Upper bound of the values in [bucket]
+        private fun bucketLimit(bucket: Int): Long {
+            if (bucket < SUB_BUCKETS) return bucket.toLong()
+            val shift = (bucket ushr SUB_BUCKET_BITS) - 1
+            val mantissa = (bucket and (SUB_BUCKETS - 1)) + SUB_BUCKETS
+            return ((mantissa + 1).toLong() shl shift) - 1
+        }
+    }
+
+    private val calls = LongAdder()
+    private val filtered = LongAdder()
+    private val buckets = Array(BUCKET_COUNT) { LongAdder() }
+
+    // Only touched by the snapshot thread
+    private var lastCalls = 0L
+    private var lastSnapshotAt = SystemClock.elapsedRealtime()
+
+    /**
+     * Record one call that started at [startNs] ([System.nanoTime]).
+     */
+    fun record(startNs: Long, filtered: Boolean) {
+        val elapsed = System.nanoTime() - startNs
+        calls.increment()
+        if (filtered) this.filtered.increment()
+        buckets[bucketOf(elapsed)].increment()
+    }
+
+    private fun summarize(): Bundle {
+        val now = SystemClock.elapsedRealtime()
+        val totalCalls = calls.sum()
+        val counts = LongArray(BUCKET_COUNT) { buckets[it].sum() }
+        val recorded = counts.sum()
+        val callsPerSec = (totalCalls - lastCalls) * 1000.0 / maxOf(now - lastSnapshotAt, 1)
+        lastCalls = totalCalls
+        lastSnapshotAt = now
+        return Bundle().apply {
+            putLong(KEY_CALLS, totalCalls)
+            putLong(KEY_FILTERED, filtered.sum())
+            putDouble(KEY_CALLS_PER_SEC, callsPerSec)
+            putLong(KEY_P50_NS, percentile(counts, recorded, 0.50))
+            putLong(KEY_P99_NS, percentile(counts, recorded, 0.99))
+        }
+    }
+
+    private fun percentile(counts: LongArray, total: Long, p: Double): Long {
+        if (total == 0L) return 0
+        val rank = maxOf((total * p).toLong(), 1)
+        var seen = 0L
+        for (i in counts.indices) {
+            seen += counts[i]
+            if (seen >= rank) return bucketLimit(i)
+        }
+        return bucketLimit(BUCKET_COUNT - 1)
+    }
+}
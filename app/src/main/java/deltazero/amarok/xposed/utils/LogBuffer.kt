@@ -0,0 +1,136 @@
+package deltazero.amarok.xposed.utils
+
+import android.os.SystemClock
+import android.util.Log as AndroidLog
+import com.github.kyuubiran.ezxhelper.Log
+import java.util.concurrent.atomic.AtomicIntegerArray
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Fixed-size lock-free ring buffer of log records, drained to the Xposed log by a
+ * background thread, so hooks never block on log I/O.
+ *
+ * Writers claim a sequence number and publish their slot with a volatile write. If the
+ * drainer falls a whole lap behind, the oldest records are overwritten and counted in [dropped].
+ * Slots work like a seqlock: a writer marks its slot as being written before touching the
+ * fields, and the drainer discards a copy if the slot's sequence changed while it was read.
+ */
+object LogBuffer {
+
+    private const val CAPACITY = 512
+    private const val MASK = CAPACITY - 1
+    private const val DRAIN_INTERVAL_NS = 50_000_000L
+
+    // Volatile fields, so the drainer's copy is ordered before its second look at [published]
+    private val priorities = AtomicIntegerArray(CAPACITY)
+    private val tags = AtomicReferenceArray<String>(CAPACITY)
+    private val messages = AtomicReferenceArray<String>(CAPACITY)
+    private val errors = AtomicReferenceArray<Throwable>(CAPACITY)
+
+    // Sequence number + 1 of the record in each slot; 0 if never written,
+    // negated while a writer is filling the slot
+    private val published = AtomicLongArray(CAPACITY)
+    private val tail = AtomicLong()
+
+    // Only touched by the drain thread
+    private var head = 0L
+
+    private val droppedCounter = LongAdder()
+    private val suppressedCounter = LongAdder()
+
+    /** Records lost because the drain thread fell behind. */
+    val dropped: Long get() = droppedCounter.sum()
+
+    /** Records rejected by [RateLimiter]. */
+    val suppressed: Long get() = suppressedCounter.sum()
+
+    private val drainThread by lazy {
+        Thread({
+            while (true) {
+                drain()
+                LockSupport.parkNanos(DRAIN_INTERVAL_NS)
+            }
+        }, "XHide-Log").apply {
+            isDaemon = true
+            start()
+        }
+    }
+
+    fun offer(priority: Int, tag: String, msg: String, e: Throwable?) {
+        drainThread
+        val seq = tail.getAndIncrement()
+        val i = (seq and MASK.toLong()).toInt()
+        published.set(i, -(seq + 1))
+        priorities.set(i, priority)
+        tags.set(i, tag)
+        messages.set(i, msg)
+        errors.set(i, e)
+        published.set(i, seq + 1)
+    }
+
+    private fun drain() {
+        while (true) {
+            val i = (head and MASK.toLong()).toInt()
+            val seq = published.get(i)
+            if (seq <= head) return // not written yet, or being overwritten
+            if (seq > head + 1) {
+                // Overwritten by a later lap; skip to the oldest record still in the buffer
+                val oldest = maxOf(head + 1, tail.get() - CAPACITY)
+                droppedCounter.add(oldest - head)
+                head = oldest
+                continue
+            }
+            val priority = priorities.get(i)
+            val tag = tags.get(i)
+            val msg = messages.get(i)
+            val e = errors.get(i)
+            // A writer of a later lap started on the slot while it was read; the copy may be mixed
+            if (published.get(i) != seq) continue
+            head++
+            write(priority, "[$tag] $msg", e)
+        }
+    }
+
+    private fun write(priority: Int, msg: String, e: Throwable?) {
+        when (priority) {
+            AndroidLog.DEBUG -> Log.d(msg, e)
+            AndroidLog.INFO -> Log.ix(msg, e)
+            AndroidLog.WARN -> Log.wx(msg, e)
+            else -> Log.ex(msg, e)
+        }
+    }
+
+    /**
+     * Per (hook, caller) rate limit: at most [BURST] records per second for each key.
+     * Direct-mapped over packed longs; colliding keys simply share a budget.
+     */
+    object RateLimiter {
+        private const val SLOT_COUNT = 1024
+        private const val BURST = 5
+
+        // Slot layout: key hash (32) | second (24) | count (8)
+        private val slots = AtomicLongArray(SLOT_COUNT)
+
+        fun tryAcquire(tag: String, uid: Int): Boolean {
+            val key = tag.hashCode() * 31 + uid
+            val second = (SystemClock.uptimeMillis() / 1000).toInt() and 0xffffff
+            val index = (key xor (key ushr 16)) and (SLOT_COUNT - 1)
+            while (true) {
+                val entry = slots.get(index)
+                val sameWindow = (entry ushr 32).toInt() == key &&
+                        ((entry ushr 8) and 0xffffff).toInt() == second
+                val count = if (sameWindow) (entry and 0xff).toInt() else 0
+                if (count >= BURST) {
+                    suppressedCounter.increment()
+                    return false
+                }
+                val next = (key.toLong() shl 32) or (second.toLong() shl 8) or (count + 1).toLong()
+                if (slots.compareAndSet(index, entry, next)) return true
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package deltazero.amarok.xposed.utils
+
+import android.content.pm.ApplicationInfo
+import android.os.Process
+import android.os.UserHandle
+
+/**
+ * App id bitmaps of system apps and of packages that must never be hidden.
+ *
+ * Both bitmaps are indexed by app id, so one lookup covers every user. They are rebuilt
+ * once from PMS when the service starts and then patched on each package add and
+ * remove, so hooks answer "is the target a system app" with a single bit test and no
+ * PMS call. Updates copy the bitmaps and publish them through one volatile reference.
+ */
+object SystemApps {
+
+    /** Packages that are never hidden from anyone, as in HMA's Constants.packagesShouldNotHide. */
+    val NEVER_HIDE = setOf(
+        "android",
+        "android.media",
+        "android.uid.system",
+        "android.uid.shell",
+        "android.uid.systemui",
+        "com.android.permissioncontroller",
+        "com.android.providers.downloads",
+        "com.android.providers.downloads.ui",
+        "com.android.providers.media",
+        "com.android.providers.media.module",
+        "com.android.providers.settings",
+        "com.google.android.webview",
+        "com.google.android.providers.media.module"
+    )
+
+    private const val FIRST_APP_ID = Process.FIRST_APPLICATION_UID
+    private const val LAST_APP_ID = Process.LAST_APPLICATION_UID
+    private const val WORDS = (LAST_APP_ID - FIRST_APP_ID + 1 + 63) / 64
+
+    private class Bitmaps(val system: LongArray, val neverHide: LongArray)
+
+    @Volatile
+    private var bitmaps = Bitmaps(LongArray(WORDS), LongArray(WORDS))
+
+    /**
+     * Packages that set a bit, by app id, each mapped to whether it is a system app.
+     * Packages of a shared user share one app id, so a bit is cleared only once the
+     * last of them is removed. Guarded by this object's lock.
+     */
+    private var owners = HashMap<Int, HashMap<String, Boolean>>()
+
+    /**
+     * True if [appId] belongs to a system app. Core ids below the first application id
+     * always count as system.
+     */
+    fun isSystem(appId: Int): Boolean {
+        if (appId < 0) return false
+        if (appId < FIRST_APP_ID) return true
+        return test(bitmaps.system, appId)
+    }
+
+    /**
+     * True if [appId] must never take part in filtering, either as caller or as target.
+     * Core ids below the first application id are never filtered, as in AppsFilter.
+     */
+    fun isNeverHide(appId: Int): Boolean {
+        if (appId < 0) return false
+        if (appId < FIRST_APP_ID) return true
+        return test(bitmaps.neverHide, appId)
+    }
+
+    /** [isSystem] for a full uid. */
+    fun isSystemUid(uid: Int): Boolean = isSystem(UserHandle.getAppId(uid))
+
+    /** [isNeverHide] for a full uid. */
+    fun isNeverHideUid(uid: Int): Boolean = isNeverHide(UserHandle.getAppId(uid))
+
+    /**
+     * Rebuild both bitmaps from every installed app, e.g. PMS getInstalledApplications with
+     * MATCH_UNINSTALLED_PACKAGES. Returns the number of system apps found.
+     */
+    @Synchronized
+    fun refresh(apps: Collection<ApplicationInfo>): Int {
+        val system = LongArray(WORDS)
+        val neverHide = LongArray(WORDS)
+        val owners = HashMap<Int, HashMap<String, Boolean>>()
+        var count = 0
+        for (app in apps) {
+            val appId = UserHandle.getAppId(app.uid)
+            if (appId !in FIRST_APP_ID..LAST_APP_ID) continue
+            val isSystem = app.flags and ApplicationInfo.FLAG_SYSTEM != 0
+            if (isSystem) {
+                set(system, appId)
+                count++
+            }
+            if (app.packageName in NEVER_HIDE) set(neverHide, appId)
+            if (isSystem || app.packageName in NEVER_HIDE) {
+                owners.getOrPut(appId) { HashMap() }[app.packageName] = isSystem
+            }
+        }
+        this.owners = owners
+        bitmaps = Bitmaps(system, neverHide)
+        return count
+    }
+
+    /**
+     * Record a package added or updated in PMS, setting the bits of its app id.
+     */
+    @Synchronized
+    fun onPackageAdded(packageName: String, appId: Int, isSystem: Boolean) {
+        if (appId !in FIRST_APP_ID..LAST_APP_ID) return
+        val neverHide = packageName in NEVER_HIDE
+        if (isSystem || neverHide) owners.getOrPut(appId) { HashMap() }[packageName] = isSystem
+        else owners[appId]?.remove(packageName)
+        val current = bitmaps
+        if ((!isSystem || test(current.system, appId)) && (!neverHide || test(current.neverHide, appId))) return
+        val system = if (isSystem) current.system.copyOf().also { set(it, appId) } else current.system
+        val never = if (neverHide) current.neverHide.copyOf().also { set(it, appId) } else current.neverHide
+        bitmaps = Bitmaps(system, never)
+    }
+
+    /**
+     * Record a package removed from PMS. A bit of its app id is cleared when no remaining
+     * package of that app id still sets it. [appId] may be -1 when the caller only knows
+     * the name, as with Settings.removePackageLPw before Android 11.
+     */
+    @Synchronized
+    fun onPackageRemoved(packageName: String, appId: Int) {
+        val id = if (appId >= 0) appId
+        else owners.entries.firstOrNull { packageName in it.value }?.key ?: return
+        val packages = owners[id] ?: return
+        if (packages.remove(packageName) == null) return
+        if (packages.isEmpty()) owners.remove(id)
+        val current = bitmaps
+        val clearSystem = test(current.system, id) && packages.values.none { it }
+        val clearNever = test(current.neverHide, id) && packages.keys.none { it in NEVER_HIDE }
+        if (!clearSystem && !clearNever) return
+        val system = if (clearSystem) current.system.copyOf().also { clear(it, id) } else current.system
+        val never = if (clearNever) current.neverHide.copyOf().also { clear(it, id) } else current.neverHide
+        bitmaps = Bitmaps(system, never)
+    }
+
+    private fun test(bits: LongArray, appId: Int): Boolean {
+        val bit = appId - FIRST_APP_ID
+        if (bit >= WORDS * 64) return false
+        return (bits[bit ushr 6] ushr (bit and 63)) and 1L != 0L
+    }
+
+    private fun set(bits: LongArray, appId: Int) {
+        val bit = appId - FIRST_APP_ID
+        bits[bit ushr 6] = bits[bit ushr 6] or (1L shl (bit and 63))
+    }
+
+    private fun clear(bits: LongArray, appId: Int) {
+        val bit = appId - FIRST_APP_ID
+        bits[bit ushr 6] = bits[bit ushr 6] and (1L shl (bit and 63)).inv()
+    }
+}
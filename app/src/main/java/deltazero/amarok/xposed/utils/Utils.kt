@@ -1,11 +1,44 @@
 package deltazero.amarok.xposed.utils
 
+import android.content.pm.ApplicationInfo
+import android.content.pm.IPackageManager
 import android.os.Binder
 import android.os.Build
-import com.github.kyuubiran.ezxhelper.utils.findField
+import java.lang.reflect.Field
+import java.lang.reflect.Method
+import java.util.concurrent.ConcurrentHashMap
 
 object Utils {
 
+    /**
+     * Resolved field of a PackageSetting/PackageStateInternal class,
+     * or null if the class has none. Negative results are cached too.
+     */
+    private class FieldAccessor(val field: Field?)
+
+    private class MethodAccessor(val method: Method?)
+
+    private val nameAccessors = ConcurrentHashMap<Class<*>, FieldAccessor>()
+    private val appIdAccessors = ConcurrentHashMap<Class<*>, FieldAccessor>()
+    private val sharedPackagesAccessors = ConcurrentHashMap<Class<*>, FieldAccessor>()
+    private val isSystemAccessors = ConcurrentHashMap<Class<*>, MethodAccessor>()
+
+    // Android 13 renamed PackageSetting.name to mName; try the expected one first
+    private val packageNameFields = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+        arrayOf("mName", "name")
+    } else {
+        arrayOf("name", "mName")
+    }
+
+    private val appIdFields = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+        arrayOf("mAppId", "appId")
+    } else {
+        arrayOf("appId", "mAppId")
+    }
+
+    // SharedUserSetting.packages, absent from PackageSetting
+    private val sharedPackagesFields = arrayOf("packages", "mPackages")
+
     fun <T> binderLocalScope(block: () -> T): T {
         val identity = Binder.clearCallingIdentity()
         val result = block()
@@ -13,11 +46,94 @@ object Utils {
         return result
     }
 
+    fun getPackageUidCompat(pms: IPackageManager, packageName: String, flags: Long, userId: Int): Int {
+        return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            pms.getPackageUid(packageName, flags, userId)
+        } else {
+            pms.getPackageUid(packageName, flags.toInt(), userId)
+        }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    fun getInstalledApplicationsCompat(pms: IPackageManager, flags: Long, userId: Int): List<ApplicationInfo> {
+        val slice = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            pms.getInstalledApplications(flags, userId)
+        } else {
+            pms.getInstalledApplications(flags.toInt(), userId)
+        }
+        return slice?.list as List<ApplicationInfo>? ?: emptyList()
+    }
+
     fun getPackageNameFromPackageSettings(packageSettings: Any): String? {
+        val clazz = packageSettings.javaClass
+        val accessor = nameAccessors[clazz]
+            ?: nameAccessors.getOrPut(clazz) { FieldAccessor(findField(clazz, packageNameFields, String::class.java)) }
+        val field = accessor.field ?: return null
         return runCatching {
-            findField(packageSettings::class.java, true) {
-                name == if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) "mName" else "name"
-            }.get(packageSettings) as? String
+            field.get(packageSettings) as? String
         }.getOrNull()
     }
+
+    /**
+     * App id of a PackageSetting/PackageStateInternal, or -1 if it cannot be read.
+     */
+    fun getAppIdFromPackageSettings(packageSettings: Any): Int {
+        val clazz = packageSettings.javaClass
+        val accessor = appIdAccessors[clazz]
+            ?: appIdAccessors.getOrPut(clazz) { FieldAccessor(findField(clazz, appIdFields, Int::class.javaPrimitiveType!!)) }
+        val field = accessor.field ?: return -1
+        return runCatching { field.getInt(packageSettings) }.getOrDefault(-1)
+    }
+
+    /**
+     * Packages of the calling setting AppsFilter passes on Android 11-12: a PackageSetting,
+     * or a SharedUserSetting whose packages share the uid. Null if it cannot be read.
+     */
+    fun getPackagesFromSettingBase(setting: Any): Array<String>? {
+        val clazz = setting.javaClass
+        val accessor = sharedPackagesAccessors[clazz]
+            ?: sharedPackagesAccessors.getOrPut(clazz) {
+                FieldAccessor(findField(clazz, sharedPackagesFields, Collection::class.java))
+            }
+        val field = accessor.field
+            ?: return getPackageNameFromPackageSettings(setting)?.let { arrayOf(it) }
+        val packages = runCatching { field.get(setting) as? Collection<*> }.getOrNull() ?: return null
+        return packages.mapNotNull { it?.let(::getPackageNameFromPackageSettings) }.toTypedArray()
+    }
+
+    /**
+     * Whether a PackageSetting/PackageStateInternal belongs to a system app, or null if unknown.
+     */
+    fun isSystemPackageSettings(packageSettings: Any): Boolean? {
+        val clazz = packageSettings.javaClass
+        val accessor = isSystemAccessors[clazz]
+            ?: isSystemAccessors.getOrPut(clazz) { MethodAccessor(findIsSystemMethod(clazz)) }
+        val method = accessor.method ?: return null
+        return runCatching { method.invoke(packageSettings) as? Boolean }.getOrNull()
+    }
+
+    private fun findIsSystemMethod(clazz: Class<*>): Method? {
+        return runCatching {
+            clazz.getMethod("isSystem").takeIf { it.returnType == Boolean::class.javaPrimitiveType }
+        }.getOrNull()?.apply { isAccessible = true }
+    }
+
+    private fun findField(clazz: Class<*>, names: Array<String>, type: Class<*>): Field? {
+        for (name in names) {
+            var current: Class<*>? = clazz
+            while (current != null) {
+                val field = try {
+                    current.getDeclaredField(name)
+                } catch (e: NoSuchFieldException) {
+                    null
+                }
+                if (field != null && type.isAssignableFrom(field.type)) {
+                    field.isAccessible = true
+                    return field
+                }
+                current = current.superclass
+            }
+        }
+        return null
+    }
 }
@@ -0,0 +1,134 @@
+package deltazero.amarok.xposed.utils
+
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * (calling uid, target package id) → hide verdict cache for the PMS filter hooks.
+ *
+ * Launchers, keyboards and GMS ask about the same targets over and over, so the verdict
+ * of a pair is remembered until the config or the package set changes. The table is
+ * direct-mapped over an [AtomicLongArray]; each slot packs the whole entry into one long,
+ * so lookups and stores are single lock-free reads and writes without boxing.
+ *
+ * Entries are tagged with an epoch bound to the [HideRules] they were computed for.
+ * Switching rules or calling [invalidate] bumps the epoch, which drops every entry in O(1).
+ * A caller takes the epoch once with [stamp] before computing a verdict and stores it under
+ * that epoch, so a verdict computed across an invalidation never matches afterwards.
+ */
+object VerdictCache {
+
+    const val MISS = -1
+    const val SHOW = 0
+    const val HIDE = 1
+
+    /**
+     * Target key for a system package that is not in the rules. Packages outside the rules
+     * share the id -1, but sandboxes excluding system apps see system ones differently.
+     */
+    const val SYSTEM_TARGET = -2
+
+    private const val SLOT_COUNT = 4096
+    private const val SLOT_MASK = SLOT_COUNT - 1
+
+    // Slot layout: uid (32) | target id + 2 (20) | epoch (11) | verdict (1).
+    // Epochs start at 1, so an empty slot (0) never matches.
+    private const val TARGET_BITS = 20
+    private const val MAX_TARGET_ID = (1 shl TARGET_BITS) - 3
+    private const val EPOCH_BITS = 11
+    private const val MAX_EPOCH = (1 shl EPOCH_BITS) - 1
+    private const val VERDICT_BIT = 1L
+
+    private class Epoch(val rules: HideRules, val value: Int)
+
+    @Volatile
+    private var epoch = Epoch(HideRules.EMPTY, 1)
+    private val lock = Any()
+
+    private val slots = AtomicLongArray(SLOT_COUNT)
+    private val hitCounter = LongAdder()
+    private val missCounter = LongAdder()
+
+    val hits: Long get() = hitCounter.sum()
+    val misses: Long get() = missCounter.sum()
+
+    /**
+     * Current epoch for [rules], to pass to [get] and [put]. 0 for a stale snapshot still used
+     * by a racing thread; nothing is cached under it.
+     */
+    fun stamp(rules: HideRules): Int = epochOf(rules)
+
+    /**
+     * Cached verdict ([HIDE] or [SHOW]) of [uid] looking at [targetId] under [epoch], or [MISS].
+     */
+    fun get(epoch: Int, uid: Int, targetId: Int): Int {
+        if (epoch == 0 || targetId > MAX_TARGET_ID) {
+            missCounter.increment()
+            return MISS
+        }
+        val key = pack(uid, targetId, epoch)
+        val entry = slots.get(slotOf(uid, targetId))
+        if (entry and VERDICT_BIT.inv() != key) {
+            missCounter.increment()
+            return MISS
+        }
+        hitCounter.increment()
+        return (entry and VERDICT_BIT).toInt()
+    }
+
+    /**
+     * Remember that [uid] looking at [targetId] is [hide], as computed under [epoch].
+     * Dropped if the epoch has moved on since; stored anyway, the tag would never match.
+     */
+    fun put(epoch: Int, uid: Int, targetId: Int, hide: Boolean) {
+        if (epoch == 0 || epoch != this.epoch.value || targetId > MAX_TARGET_ID) return
+        val entry = pack(uid, targetId, epoch) or (if (hide) VERDICT_BIT else 0L)
+        slots.lazySet(slotOf(uid, targetId), entry)
+    }
+
+    /**
+     * Drop every entry. Called whenever the package set changes.
+     */
+    fun invalidate() {
+        synchronized(lock) {
+            advance(epoch.rules)
+        }
+    }
+
+    /**
+     * Epoch of [rules], switching to it if it is newer than the current one.
+     * Returns 0 for a stale snapshot still used by a racing thread; it is not cached.
+     */
+    private fun epochOf(rules: HideRules): Int {
+        val current = epoch
+        if (current.rules === rules) return current.value
+        synchronized(lock) {
+            val locked = epoch
+            if (locked.rules === rules) return locked.value
+            if (locked.rules !== HideRules.EMPTY && rules.generation < locked.rules.generation) return 0
+            return advance(rules)
+        }
+    }
+
+    // Caller holds [lock]
+    private fun advance(rules: HideRules): Int {
+        var next = epoch.value + 1
+        if (next > MAX_EPOCH) {
+            // Epoch tags wrapped; entries from the previous round would match again
+            for (i in 0 until SLOT_COUNT) slots.set(i, 0)
+            next = 1
+        }
+        epoch = Epoch(rules, next)
+        return next
+    }
+
+    private fun pack(uid: Int, targetId: Int, epoch: Int): Long =
+        (uid.toLong() shl 32) or
+                ((targetId + 2).toLong() shl (EPOCH_BITS + 1)) or
+                (epoch.toLong() shl 1)
+
+    private fun slotOf(uid: Int, targetId: Int): Int {
+        val h = uid * -0x61c88647 xor targetId * -0x7a143595
+        return (h xor (h ushr 15)) and SLOT_MASK
+    }
+}
@@ -1,97 +1,150 @@
 package deltazero.amarok.xposed.utils
 
+import android.os.FileObserver
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.SystemClock
 import com.github.kyuubiran.ezxhelper.Log
-import com.google.gson.Gson
-import com.google.gson.reflect.TypeToken
 import de.robv.android.xposed.XSharedPreferences
 import deltazero.amarok.BuildConfig
+import java.io.File
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
 
 /**
- * Xposed-side preference reader for hide configuration.
+ * Xposed-side holder of the hide configuration.
  * Supports blacklist (hide from all) and whitelist (sandbox) modes.
+ *
+ * The configuration is a binary [HideRules] image published as one immutable snapshot through
+ * a single volatile reference, so hooks on binder threads never observe a half-updated
+ * configuration and never touch the filesystem.
+ *
+ * At boot the image the app last wrote into the XSharedPreferences directory is mapped once.
+ * After that, the app pushes every change through [deltazero.amarok.xposed.XHideService].
+ * The directory is also watched with a [FileObserver], so a rewritten file is picked up even
+ * when the service is not linked. Rebuilds run on a background thread, debounced so a burst
+ * of writes produces one rebuild.
  */
 object XPref {
-    private var xPref: XSharedPreferences? = null
-    private val gson = Gson()
-
     const val XPREF_PATH = "deltazero.amarok.hide_config"
-    const val KEY_BLACKLIST = "blacklist_apps"
-    const val KEY_WHITELIST = "whitelist_apps"
-    const val KEY_LINKED = "linked_apps"
+    const val CONFIG_FILENAME = "deltazero.amarok.hide_config.bin"
+
+    // Quiet period after the last file event before the snapshot is rebuilt
+    private const val REBUILD_DEBOUNCE_MS = 300L
+
+    @Volatile
+    private var snapshot = HideRules.EMPTY
+
+    private var configFile: File? = null
+    private var observer: FileObserver? = null
+    private val handler by lazy {
+        Handler(HandlerThread("XHide-XPref").apply { start() }.looper)
+    }
+    private val rebuildTask = Runnable { configFile?.let { rebuild(it) } }
+
+    private var onConfigChanged: (() -> Unit)? = null
+
+    /** Number of snapshot rebuilds triggered by file changes. */
+    @Volatile
+    var rebuildCount = 0
+        private set
 
-    // Cached values
-    private var blacklistCache: Set<String> = emptySet()
-    private var whitelistCache: Set<String> = emptySet()
-    private var linkedCache: Map<String, Set<String>> = emptyMap()
+    /** Duration of the last rebuild triggered by a file change, in nanoseconds. */
+    @Volatile
+    var lastRebuildDurationNs = 0L
+        private set
 
     fun init() {
         Log.d("Initializing XPref...", null)
 
-        xPref = XSharedPreferences(BuildConfig.APPLICATION_ID, XPREF_PATH)
-        Log.d("xPref path: ${xPref?.file?.absolutePath}", null)
+        val file = File(getXPrefDir(), CONFIG_FILENAME)
+        configFile = file
+        Log.d("Config path: ${file.absolutePath}", null)
 
-        xPref?.let {
-            if (it.file.canRead()) {
-                it.reload()
-                refreshCache()
-                Log.d("xPref loaded successfully", null)
-            } else {
-                Log.wx("No XPref found. Launch Amarok once to configure.", null)
-            }
+        if (file.canRead()) {
+            load(file)
+        } else {
+            Log.wx("No config found. Launch Amarok once to configure.", null)
         }
+        watch(file)
 
         Log.ix("XPref initialized.", null)
     }
 
-    fun refreshCache() {
-        xPref?.let { pref ->
-            pref.reload()
-            if (!pref.file.canRead()) return
-
-            blacklistCache = pref.getStringSet(KEY_BLACKLIST, emptySet()) ?: emptySet()
-            whitelistCache = pref.getStringSet(KEY_WHITELIST, emptySet()) ?: emptySet()
-
-            val linkedJson = pref.getString(KEY_LINKED, "{}") ?: "{}"
-            linkedCache = try {
-                val type = object : TypeToken<Map<String, Set<String>>>() {}.type
-                gson.fromJson(linkedJson, type) ?: emptyMap()
-            } catch (e: Exception) {
-                Log.ex("Failed to parse linked apps JSON", e)
-                emptyMap()
-            }
+    /**
+     * Current configuration snapshot. Never blocks and never touches the filesystem.
+     */
+    fun current(): HideRules = snapshot
 
-            Log.d("Cache refreshed: blacklist=${blacklistCache.size}, whitelist=${whitelistCache.size}", null)
-        }
+    /**
+     * Set the callback run after each published snapshot, e.g. to install or remove hooks.
+     * It runs on the publishing thread (service binder or file watcher), never inside a hooked call.
+     */
+    @Synchronized
+    fun setOnConfigChangedListener(listener: (() -> Unit)?) {
+        onConfigChanged = listener
     }
 
     /**
-     * Determine if target should be hidden from caller.
-     * 
-     * Logic:
-     * 1. If target is blacklisted → HIDE from everyone
-     * 2. If caller is whitelisted (sandboxed) → HIDE unless target is linked
+     * Replace the current snapshot with [rules] unless it is older than the one in use.
+     *
+     * @return true if [rules] is now the current snapshot
      */
-    fun shouldHide(caller: String?, target: String?): Boolean {
-        if (caller == null && target == null) return false
-        if (caller == target) return false
+    @Synchronized
+    fun publish(rules: HideRules): Boolean {
+        val current = snapshot
+        if (current !== HideRules.EMPTY && rules.generation < current.generation) return false
+        snapshot = rules
+        Log.d("Config published: generation=${rules.generation}, " +
+                "blacklist=${rules.blacklistSize}, whitelist=${rules.whitelistSize}", null)
+        onConfigChanged?.invoke()
+        return true
+    }
 
-        // Rule 1: Blacklist - target hidden from ALL
-        if (target != null && target in blacklistCache) {
-            return true
-        }
+    @Suppress("DEPRECATION") // FileObserver(File, Int) needs API 29
+    private fun watch(file: File) {
+        val dir = file.parentFile ?: return
+        observer = object : FileObserver(dir.absolutePath, CLOSE_WRITE or MOVED_TO) {
+            override fun onEvent(event: Int, path: String?) {
+                if (path != CONFIG_FILENAME) return
+                handler.removeCallbacks(rebuildTask)
+                handler.postDelayed(rebuildTask, REBUILD_DEBOUNCE_MS)
+            }
+        }.apply { startWatching() }
+    }
 
-        // Rule 2: Whitelist - caller is sandboxed
-        if (caller != null && caller in whitelistCache) {
-            val allowedApps = linkedCache[caller]
-            return target !in (allowedApps ?: emptySet())
-        }
+    private fun rebuild(file: File) {
+        val start = SystemClock.elapsedRealtimeNanos()
+        if (!load(file)) return
+        lastRebuildDurationNs = SystemClock.elapsedRealtimeNanos() - start
+        rebuildCount++
+        Log.d("Config rebuilt from file in ${lastRebuildDurationNs / 1000}us", null)
+    }
 
-        return false
+    /**
+     * Map [file] and publish it, unless its generation is not newer than the current snapshot
+     * (e.g. the app already pushed the same image through the service).
+     */
+    private fun load(file: File): Boolean {
+        try {
+            FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
+                val current = snapshot
+                if (current !== HideRules.EMPTY && HideRules.readGeneration(channel) <= current.generation) {
+                    return false
+                }
+                return publish(HideRules.wrap(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())))
+            }
+        } catch (e: Exception) {
+            Log.ex("Failed to map config file", e)
+            return false
+        }
     }
 
-    fun isBlacklisted(packageName: String): Boolean = packageName in blacklistCache
-    
-    fun isWhitelisted(packageName: String): Boolean = packageName in whitelistCache
+    fun shouldHide(caller: String?, target: String?): Boolean = snapshot.shouldHide(caller, target)
+
+    fun isBlacklisted(packageName: String): Boolean = snapshot.isBlacklisted(packageName)
+
+    fun isWhitelisted(packageName: String): Boolean = snapshot.isWhitelisted(packageName)
 
     fun getXPrefDir(): String = XSharedPreferences(BuildConfig.APPLICATION_ID, XPREF_PATH)
         .file.parentFile?.absolutePath ?: ""
@@ -0,0 +1,71 @@
+package deltazero.amarok.benchmark
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+/**
+ * Cost of one [deltazero.amarok.xposed.utils.HideRules] decision, by name (as XPref.shouldHide)
+ * and by pre-resolved ids (as the hooks do), across config sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class HideRulesBenchmark {
+
+    @Param("10", "100", "1000")
+    var blacklistSize = 0
+
+    @Param("10", "200")
+    var sandboxCount = 0
+
+    private lateinit var device: Device
+    private lateinit var callers: Array<String>
+    private lateinit var callerIds: IntArray
+    private lateinit var targetNames: Array<String>
+    private lateinit var targetIds: IntArray
+    private var index = 0
+
+    @Setup
+    fun setup() {
+        device = Device(blacklistSize, sandboxCount)
+        val rules = device.rules
+        // Mix of sandboxed and unrelated callers looking at every kind of target
+        callers = Array(PAIRS) {
+            if (it % 2 == 0) "com.sandboxed.app${it % sandboxCount}" else "com.example.app${it % 500}"
+        }
+        targetNames = Array(PAIRS) { device.targets[(it * 31) % device.targets.size].mName }
+        callerIds = IntArray(PAIRS) { rules.idOf(callers[it]) }
+        targetIds = IntArray(PAIRS) { rules.idOf(targetNames[it]) }
+    }
+
+    @Benchmark
+    fun shouldHideByName(): Boolean {
+        val i = next()
+        return device.rules.shouldHide(callers[i], targetNames[i])
+    }
+
+    @Benchmark
+    fun shouldHideById(): Boolean {
+        val i = next()
+        return device.rules.shouldHide(callerIds[i], targetIds[i])
+    }
+
+    @Benchmark
+    fun idOf(): Int = device.rules.idOf(targetNames[next()])
+
+    private fun next(): Int {
+        index = (index + 1) and (PAIRS - 1)
+        return index
+    }
+
+    companion object {
+        private const val PAIRS = 1024
+    }
+}
@@ -0,0 +1,102 @@
+package deltazero.amarok.benchmark
+
+import deltazero.amarok.xposed.utils.CallerCache
+import deltazero.amarok.xposed.utils.FilterDecision
+import deltazero.amarok.xposed.utils.Utils
+import deltazero.amarok.xposed.utils.VerdictCache
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Threads
+import java.util.concurrent.TimeUnit
+
+/**
+ * The body of the AppsFilterImpl.shouldFilterApplication hooks (PmsHookTarget30/33/34),
+ * run against stand-in package settings and a stand-in Computer snapshot.
+ *
+ * [callerKind] picks who asks: an ordinary app, a sandboxed app, or a shared uid whose
+ * packages include a sandboxed one. Targets cycle through hidden, linked, ordinary,
+ * system and never-hide packages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class HookBodyBenchmark {
+
+    @Param("10", "100", "1000")
+    var blacklistSize = 0
+
+    @Param("plain", "sandboxed", "sharedUid")
+    var callerKind = ""
+
+    private lateinit var device: Device
+    private lateinit var uids: IntArray
+
+    // Same resolver as PmsHookTarget33/34: reflective Computer.getPackagesForUid
+    @Suppress("UNCHECKED_CAST")
+    private val callerResolver = FilterDecision.CallerResolver { snapshot, callingUid ->
+        Utils.binderLocalScope {
+            getPackagesForUidMethod.invoke(snapshot, callingUid) as Array<String>?
+        }
+    }
+
+    @Setup
+    fun setup() {
+        device = Device(blacklistSize, SANDBOX_COUNT)
+        uids = when (callerKind) {
+            "plain" -> device.plainUids
+            "sandboxed" -> device.sandboxedUids
+            else -> intArrayOf(device.sharedUid)
+        }
+    }
+
+    /** Per-thread cursor over (caller, target) pairs. */
+    @State(Scope.Thread)
+    open class Cursor {
+        var index = 0
+    }
+
+    /** Steady state: launchers and GMS asking the same questions, served from the caches. */
+    @Benchmark
+    fun warm(cursor: Cursor): Boolean = filter(cursor)
+
+    /** First call after a package change: both uid caches are dropped before every call. */
+    @Benchmark
+    fun cold(cursor: Cursor): Boolean {
+        VerdictCache.invalidate()
+        CallerCache.invalidate()
+        return filter(cursor)
+    }
+
+    /** Binder threads of system_server querying concurrently. */
+    @Benchmark
+    @Threads(4)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    fun warmThroughput(cursor: Cursor): Boolean = filter(cursor)
+
+    // Mirrors the hook body; only the param.args unpacking is left out
+    private fun filter(cursor: Cursor): Boolean {
+        val i = cursor.index
+        cursor.index = (i + 1) and 0xffff
+        val callingUid = uids[i % uids.size]
+        val targetSetting = device.targets[(i * 31) % device.targets.size]
+        val targetApp = Utils.getPackageNameFromPackageSettings(targetSetting) ?: return false
+        val targetAppId = Utils.getAppIdFromPackageSettings(targetSetting)
+        return FilterDecision.shouldFilter(
+            device.rules, callingUid, targetAppId, targetApp, device.computer, callerResolver
+        )
+    }
+
+    companion object {
+        private const val SANDBOX_COUNT = 200
+
+        private val getPackagesForUidMethod =
+            FakeComputer::class.java.getMethod("getPackagesForUid", Int::class.javaPrimitiveType)
+    }
+}
@@ -0,0 +1,49 @@
+package deltazero.amarok.benchmark
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+/**
+ * Load case for the interned-id decision table: a device with 500 ordinary packages,
+ * [BLACKLIST_SIZE] hidden ones and [SANDBOX_COUNT] sandboxed callers, each asking about every
+ * installed package in turn. The gc profiler's gc.alloc.rate.norm must stay at 0 B/op.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class SandboxLoadBenchmark {
+
+    private lateinit var device: Device
+    private lateinit var callers: Array<String>
+    private lateinit var targets: Array<String>
+    private var caller = 0
+    private var target = 0
+
+    @Setup
+    fun setup() {
+        device = Device(BLACKLIST_SIZE, SANDBOX_COUNT)
+        callers = Array(SANDBOX_COUNT) { "com.sandboxed.app$it" }
+        targets = Array(device.targets.size) { device.targets[it].mName }
+    }
+
+    /** One sandboxed caller looking at one package, by name as XPref.shouldHide does. */
+    @Benchmark
+    fun shouldHide(): Boolean {
+        if (++target == targets.size) {
+            target = 0
+            if (++caller == callers.size) caller = 0
+        }
+        return device.rules.shouldHide(callers[caller], targets[target])
+    }
+
+    companion object {
+        private const val BLACKLIST_SIZE = 20
+        private const val SANDBOX_COUNT = 50
+    }
+}
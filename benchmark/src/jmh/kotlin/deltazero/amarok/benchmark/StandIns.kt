@@ -0,0 +1,96 @@
+package deltazero.amarok.benchmark
+
+import android.content.pm.ApplicationInfo
+import android.util.SparseArray
+import deltazero.amarok.xposed.utils.HideRules
+import deltazero.amarok.xposed.utils.SystemApps
+import java.nio.ByteBuffer
+
+/**
+ * Stand-in for PackageStateInternal; the field names are the ones Utils looks up on Android 13+.
+ */
+class FakePackageSetting(val mName: String, private val mAppId: Int, private val system: Boolean) {
+    fun isSystem(): Boolean = system
+}
+
+/**
+ * Stand-in for the Computer snapshot AppsFilterImpl passes to shouldFilterApplication.
+ */
+class FakeComputer(private val packagesByUid: SparseArray<Array<String>>) {
+    fun getPackagesForUid(callingUid: Int): Array<String>? = packagesByUid.get(callingUid)
+}
+
+/**
+ * A device with [blacklistSize] hidden apps, [sandboxCount] sandboxed apps that can each see
+ * [LINKS_PER_SANDBOX] apps plus a shared [TEMPLATE], [plainCount] ordinary apps, a few system apps and one shared uid
+ * holding [SHARED_UID_PACKAGES] packages, one of them sandboxed.
+ */
+class Device(blacklistSize: Int, sandboxCount: Int, plainCount: Int = 500) {
+
+    val rules: HideRules
+    val computer: FakeComputer
+
+    /** Every package setting a hook can be asked about. */
+    val targets: Array<FakePackageSetting>
+
+    val plainUids: IntArray
+    val sandboxedUids: IntArray
+    val sharedUid: Int
+
+    init {
+        var nextAppId = FIRST_APP_ID
+        val packagesByUid = SparseArray<Array<String>>()
+        val settings = ArrayList<FakePackageSetting>()
+        val apps = ArrayList<ApplicationInfo>()
+
+        fun install(packageName: String, system: Boolean = false): Int {
+            val appId = nextAppId++
+            packagesByUid.put(appId, arrayOf(packageName))
+            settings += FakePackageSetting(packageName, appId, system)
+            apps += ApplicationInfo().apply {
+                this.packageName = packageName
+                uid = appId
+                flags = if (system) ApplicationInfo.FLAG_SYSTEM else 0
+            }
+            return appId
+        }
+
+        val blacklist = List(blacklistSize) { "com.hidden.app$it" }
+        blacklist.forEach { install(it) }
+        val plain = List(plainCount) { "com.example.app$it" }
+        plainUids = IntArray(plainCount) { install(plain[it]) }
+        repeat(SYSTEM_APPS) { install("com.android.system$it", system = true) }
+        SystemApps.NEVER_HIDE.forEach { install(it, system = true) }
+
+        val sandboxed = List(sandboxCount) { "com.sandboxed.app$it" }
+        sandboxedUids = IntArray(sandboxCount) { install(sandboxed[it]) }
+        val linked = sandboxed.withIndex().associate { (i, app) ->
+            app to List(LINKS_PER_SANDBOX) { plain[(i * LINKS_PER_SANDBOX + it) % plainCount] }
+        }
+        // Every sandbox also applies one shared template
+        val templates = mapOf(TEMPLATE to plain.takeLast(TEMPLATE_SIZE))
+        val applied = sandboxed.associateWith { listOf(TEMPLATE) }
+
+        // Shared uid: several packages of one vendor, the last one sandboxed
+        sharedUid = nextAppId++
+        packagesByUid.put(sharedUid, Array(SHARED_UID_PACKAGES) {
+            if (it == SHARED_UID_PACKAGES - 1) sandboxed[0] else "com.vendor.shared$it"
+        })
+
+        SystemApps.refresh(apps)
+        computer = FakeComputer(packagesByUid)
+        targets = settings.toTypedArray()
+        rules = HideRules.wrap(ByteBuffer.wrap(
+            HideRules.encode(blacklist, sandboxed, linked, sandboxed, templates, applied, System.currentTimeMillis())
+        ))
+    }
+
+    companion object {
+        const val FIRST_APP_ID = 10000
+        const val SYSTEM_APPS = 50
+        const val LINKS_PER_SANDBOX = 10
+        const val SHARED_UID_PACKAGES = 5
+        const val TEMPLATE = "common"
+        const val TEMPLATE_SIZE = 15
+    }
+}
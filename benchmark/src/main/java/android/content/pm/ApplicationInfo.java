@@ -0,0 +1,10 @@
+package android.content.pm;
+
+/** Stand-in for the framework class, enough for the engine sources. */
+public class ApplicationInfo {
+    public static final int FLAG_SYSTEM = 1;
+
+    public String packageName;
+    public int uid;
+    public int flags;
+}
@@ -0,0 +1,14 @@
+package android.content.pm;
+
+/** Stand-in for the hidden framework interface, enough for the engine sources. */
+public interface IPackageManager {
+    int getPackageUid(String packageName, long flags, int userId);
+
+    int getPackageUid(String packageName, int flags, int userId);
+
+    ParceledListSlice<ApplicationInfo> getInstalledApplications(long flags, int userId);
+
+    ParceledListSlice<ApplicationInfo> getInstalledApplications(int flags, int userId);
+
+    String[] getPackagesForUid(int uid);
+}
@@ -0,0 +1,16 @@
+package android.content.pm;
+
+import java.util.List;
+
+/** Stand-in for the framework class, enough for the engine sources. */
+public class ParceledListSlice<T> {
+    private final List<T> list;
+
+    public ParceledListSlice(List<T> list) {
+        this.list = list;
+    }
+
+    public List<T> getList() {
+        return list;
+    }
+}
@@ -0,0 +1,11 @@
+package android.os;
+
+/** Stand-in for the framework class, enough for the engine sources. */
+public class Binder {
+    public static long clearCallingIdentity() {
+        return 0L;
+    }
+
+    public static void restoreCallingIdentity(long token) {
+    }
+}
@@ -0,0 +1,14 @@
+package android.os;
+
+/** Stand-in for the framework class; benchmarks run as Android 14. */
+public class Build {
+    public static class VERSION {
+        public static final int SDK_INT = VERSION_CODES.UPSIDE_DOWN_CAKE;
+    }
+
+    public static class VERSION_CODES {
+        public static final int R = 30;
+        public static final int TIRAMISU = 33;
+        public static final int UPSIDE_DOWN_CAKE = 34;
+    }
+}
@@ -0,0 +1,7 @@
+package android.os;
+
+/** Stand-in for the framework class, enough for the engine sources. */
+public class Process {
+    public static final int FIRST_APPLICATION_UID = 10000;
+    public static final int LAST_APPLICATION_UID = 19999;
+}
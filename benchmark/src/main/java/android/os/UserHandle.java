@@ -0,0 +1,10 @@
+package android.os;
+
+/** Stand-in for the framework class, enough for the engine sources. */
+public class UserHandle {
+    public static final int PER_USER_RANGE = 100000;
+
+    public static int getAppId(int uid) {
+        return uid % PER_USER_RANGE;
+    }
+}
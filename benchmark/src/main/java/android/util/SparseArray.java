@@ -0,0 +1,51 @@
+package android.util;
+
+import java.util.Arrays;
+
+/** Stand-in for the framework class: sorted int keys, binary search lookups. */
+public class SparseArray<E> implements Cloneable {
+    private int[] keys = new int[0];
+    private Object[] values = new Object[0];
+
+    @SuppressWarnings("unchecked")
+    public E get(int key) {
+        int i = Arrays.binarySearch(keys, key);
+        return i < 0 ? null : (E) values[i];
+    }
+
+    public void put(int key, E value) {
+        int i = Arrays.binarySearch(keys, key);
+        if (i >= 0) {
+            values[i] = value;
+            return;
+        }
+        i = ~i;
+        int[] newKeys = new int[keys.length + 1];
+        Object[] newValues = new Object[keys.length + 1];
+        System.arraycopy(keys, 0, newKeys, 0, i);
+        System.arraycopy(values, 0, newValues, 0, i);
+        newKeys[i] = key;
+        newValues[i] = value;
+        System.arraycopy(keys, i, newKeys, i + 1, keys.length - i);
+        System.arraycopy(values, i, newValues, i + 1, keys.length - i);
+        keys = newKeys;
+        values = newValues;
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public SparseArray<E> clone() {
+        try {
+            SparseArray<E> clone = (SparseArray<E>) super.clone();
+            clone.keys = keys.clone();
+            clone.values = values.clone();
+            return clone;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package deltazero.amarok.xposed.utils
+
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * [HideRules.wrap] must reject any image whose sections could send a lookup out of bounds,
+ * since the image comes from an app-writable file or a binder call.
+ */
+class HideRulesImageTest {
+
+    // Header fields, as laid out in HideRules
+    private val offPackageCount = 16
+    private val offTemplateCount = 36
+    private val offSlots = 44
+    private val offEntries = 48
+    private val offLinkIndex = 68
+    private val offTemplateIndex = 80
+    private val offTemplateRefs = 84
+    private val entrySize = 16
+
+    private fun image(): ByteBuffer {
+        val bytes = HideRules.encode(
+            listOf("com.hidden"),
+            listOf("com.sandboxed"),
+            mapOf("com.sandboxed" to listOf("com.linked")),
+            emptyList(),
+            mapOf("common" to listOf("com.shared")),
+            mapOf("com.sandboxed" to listOf("common")),
+            1
+        )
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+    }
+
+    private fun ByteBuffer.section(off: Int) = getInt(off)
+
+    /** Id of [packageName] in the unmodified image. */
+    private fun idOf(packageName: String) = HideRules.wrap(image()).idOf(packageName)
+
+    private fun assertRejected(image: ByteBuffer) {
+        assertThrows(IllegalArgumentException::class.java) { HideRules.wrap(image) }
+    }
+
+    @Test
+    fun acceptsEncodedImage() {
+        val rules = HideRules.wrap(image())
+        assertTrue(rules.shouldHide("com.example", "com.hidden"))
+        assertFalse(rules.shouldHide("com.sandboxed", "com.linked"))
+        assertFalse(rules.shouldHide("com.sandboxed", "com.shared"))
+        assertTrue(rules.shouldHide("com.sandboxed", "com.example"))
+    }
+
+    @Test
+    fun rejectsSlotPastPackageCount() {
+        val image = image()
+        val packageCount = image.getInt(offPackageCount)
+        val slotsOff = image.section(offSlots)
+        var slot = 0
+        while (image.getInt(slotsOff + slot * 4) < 0) slot++
+        image.putInt(slotsOff + slot * 4, packageCount)
+        assertRejected(image)
+    }
+
+    @Test
+    fun rejectsNamePastStrings() {
+        val image = image()
+        image.putInt(image.section(offEntries) + 4, Int.MAX_VALUE - 8)
+        assertRejected(image)
+    }
+
+    @Test
+    fun rejectsNegativeNameLength() {
+        val image = image()
+        image.putInt(image.section(offEntries) + 8, -1)
+        assertRejected(image)
+    }
+
+    @Test
+    fun rejectsChainLoop() {
+        val image = image()
+        val last = image.getInt(offPackageCount) - 1
+        image.putInt(image.section(offEntries) + last * entrySize + 12, 0)
+        assertRejected(image)
+    }
+
+    @Test
+    fun rejectsLinkRangePastLinkData() {
+        val image = image()
+        val row = image.section(offLinkIndex) + idOf("com.sandboxed") * 8
+        image.putInt(row + 4, 1000)
+        assertRejected(image)
+    }
+
+    @Test
+    fun rejectsTemplateRangePastRefs() {
+        val image = image()
+        val row = image.section(offTemplateIndex) + idOf("com.sandboxed") * 8
+        image.putInt(row, 5)
+        assertRejected(image)
+    }
+
+    @Test
+    fun rejectsTemplateRefPastTemplateCount() {
+        val image = image()
+        image.putInt(image.section(offTemplateRefs), image.getInt(offTemplateCount))
+        assertRejected(image)
+    }
+
+    @Test
+    fun rejectsCountsThatDoNotMatchSections() {
+        val image = image()
+        image.putInt(offPackageCount, image.getInt(offPackageCount) + 1)
+        assertRejected(image)
+    }
+
+    @Test
+    fun rejectsTemplateCountThatDoesNotMatchSection() {
+        val image = image()
+        image.putInt(offTemplateCount, image.getInt(offTemplateCount) + 1)
+        assertRejected(image)
+    }
+}